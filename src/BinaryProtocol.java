@@ -0,0 +1,294 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// Length-framed binary messages, all fields little-endian:
+//
+//   int32 length (of everything after it) | uint8 type | payload
+//
+//   HELLO        uint8 version, int32 clientId, int32 x, int32 y
+//   PARTICLE     int32 id, float32 x, float32 y, float32 velocity, float32 angle
+//   SPRITE       int32 clientId, int32 x, int32 y
+//   CLIENT_GONE  int32 clientId
+//   MOVE         int32 x, int32 y
+//   PARTICLE_STATE    int32 id, int32 x, int32 y, int32 vx, int32 vy (fixed point)
+//   PARTICLE_DELTAS   uint16 count, then per particle:
+//                       varint id - previous id (previous starts at 0), uint8 flags,
+//                       if flags & 1: varint dx, varint dy; if flags & 2: varint dvx, varint dvy
+//   PARTICLE_REMOVED  int32 id
+//   SNAPSHOT          int32 seq, float64 simulation time
+//   ACK               int32 seq
+//   RESET             no payload
+//
+// Varints are zigzag encoded, 7 bits per byte, so the small steps of a slow particle take one
+// byte each.
+//
+// Unknown types are skipped using the length, so newer peers can add messages.
+public class BinaryProtocol extends WireProtocol {
+    static final byte HELLO = 1;
+    static final byte PARTICLE = 2;
+    static final byte SPRITE = 3;
+    static final byte CLIENT_GONE = 4;
+    static final byte MOVE = 5;
+    static final byte PARTICLE_STATE = 6;
+    static final byte PARTICLE_DELTAS = 7;
+    static final byte PARTICLE_REMOVED = 8;
+    static final byte SNAPSHOT = 9;
+    static final byte ACK = 10;
+    static final byte RESET = 11;
+
+    static final int DELTA_POSITION = 1;
+    static final int DELTA_VELOCITY = 2;
+
+    // anything longer than this is a corrupt or foreign stream
+    static final int MAX_FRAME_LENGTH = 1 << 20;
+
+    @Override
+    public String getName() {
+        return "binary";
+    }
+
+    @Override
+    public void writeHello(ByteBuffer out, int clientId, int x, int y) {
+        int start = begin(out, HELLO);
+        out.put((byte) VERSION);
+        out.putInt(clientId);
+        out.putInt(x);
+        out.putInt(y);
+        end(out, start);
+    }
+
+    @Override
+    public void writeParticle(ByteBuffer out, int id, double x, double y, double velocity, double angle) {
+        int start = begin(out, PARTICLE);
+        out.putInt(id);
+        out.putFloat((float) x);
+        out.putFloat((float) y);
+        out.putFloat((float) velocity);
+        out.putFloat((float) angle);
+        end(out, start);
+    }
+
+    @Override
+    public void writeSprite(ByteBuffer out, int clientId, int x, int y) {
+        int start = begin(out, SPRITE);
+        out.putInt(clientId);
+        out.putInt(x);
+        out.putInt(y);
+        end(out, start);
+    }
+
+    @Override
+    public void writeClientGone(ByteBuffer out, int clientId) {
+        int start = begin(out, CLIENT_GONE);
+        out.putInt(clientId);
+        end(out, start);
+    }
+
+    @Override
+    public void writeMove(ByteBuffer out, int x, int y) {
+        int start = begin(out, MOVE);
+        out.putInt(x);
+        out.putInt(y);
+        end(out, start);
+    }
+
+    @Override
+    public void writeParticleState(ByteBuffer out, int id, int x, int y, int vx, int vy) {
+        int start = begin(out, PARTICLE_STATE);
+        out.putInt(id);
+        out.putInt(x);
+        out.putInt(y);
+        out.putInt(vx);
+        out.putInt(vy);
+        end(out, start);
+    }
+
+    @Override
+    public void writeParticleRemoved(ByteBuffer out, int id) {
+        int start = begin(out, PARTICLE_REMOVED);
+        out.putInt(id);
+        end(out, start);
+    }
+
+    @Override
+    public void writeSnapshot(ByteBuffer out, int seq, double time) {
+        int start = begin(out, SNAPSHOT);
+        out.putInt(seq);
+        out.putDouble(time);
+        end(out, start);
+    }
+
+    @Override
+    public void writeReset(ByteBuffer out) {
+        end(out, begin(out, RESET));
+    }
+
+    @Override
+    public void writeAck(ByteBuffer out, int seq) {
+        int start = begin(out, ACK);
+        out.putInt(seq);
+        end(out, start);
+    }
+
+    @Override
+    public boolean supportsDeltas() {
+        return true;
+    }
+
+    @Override
+    public int beginDeltas(ByteBuffer out) {
+        int start = begin(out, PARTICLE_DELTAS);
+        out.putShort((short) 0);
+        return start;
+    }
+
+    @Override
+    public void writeDelta(ByteBuffer out, int previousId, int id, int dx, int dy, int dvx, int dvy) {
+        putVarint(out, id - previousId);
+        int flags = (dx != 0 || dy != 0 ? DELTA_POSITION : 0) | (dvx != 0 || dvy != 0 ? DELTA_VELOCITY : 0);
+        out.put((byte) flags);
+        if ((flags & DELTA_POSITION) != 0) {
+            putVarint(out, dx);
+            putVarint(out, dy);
+        }
+        if ((flags & DELTA_VELOCITY) != 0) {
+            putVarint(out, dvx);
+            putVarint(out, dvy);
+        }
+    }
+
+    @Override
+    public void endDeltas(ByteBuffer out, int start, int count) {
+        out.putShort(start + 5, (short) count);
+        end(out, start);
+    }
+
+    static void putVarint(ByteBuffer out, int value) {
+        int zigzag = (value << 1) ^ (value >> 31);
+        while ((zigzag & ~0x7F) != 0) {
+            out.put((byte) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        out.put((byte) zigzag);
+    }
+
+    static int getVarint(ByteBuffer in) {
+        int zigzag = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            zigzag |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        throw new IllegalArgumentException("Varint longer than 5 bytes");
+    }
+
+    // Reserves the length and writes the type, returns where the frame starts
+    static int begin(ByteBuffer out, byte type) {
+        out.order(ByteOrder.LITTLE_ENDIAN);
+        int start = out.position();
+        out.putInt(0);
+        out.put(type);
+        return start;
+    }
+
+    // Back-fills the length of the frame started at start
+    static void end(ByteBuffer out, int start) {
+        out.putInt(start, out.position() - start - 4);
+    }
+
+    @Override
+    public void decode(ByteBuffer in, Listener listener) throws IOException {
+        in.order(ByteOrder.LITTLE_ENDIAN);
+        while (in.remaining() >= 4) {
+            int start = in.position();
+            int length = in.getInt(start);
+            if (length < 1 || length > MAX_FRAME_LENGTH) {
+                throw new IOException("Bad frame length " + length);
+            }
+            if (in.remaining() < 4 + length) {
+                if (4 + length > in.capacity()) {
+                    throw new IOException("Frame of " + length + " bytes does not fit the read buffer");
+                }
+                return; // wait for the rest of the frame
+            }
+            int end = start + 4 + length;
+            int limit = in.limit();
+            // a frame that is shorter than its type needs must not read into the next one
+            in.limit(end);
+            in.position(start + 4);
+            byte type = in.get();
+            try {
+                dispatch(type, in, listener);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Truncated message of type " + type);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Malformed message of type " + type + ": " + e.getMessage());
+            }
+            in.limit(limit);
+            in.position(end);
+        }
+    }
+
+    private static void dispatch(byte type, ByteBuffer in, Listener listener) {
+        switch (type) {
+            case HELLO:
+                listener.onHello(in.get() & 0xFF, in.getInt(), in.getInt(), in.getInt());
+                break;
+            case PARTICLE:
+                listener.onParticle(in.getInt(), in.getFloat(), in.getFloat(), in.getFloat(), in.getFloat());
+                break;
+            case SPRITE:
+                listener.onSprite(in.getInt(), in.getInt(), in.getInt());
+                break;
+            case CLIENT_GONE:
+                listener.onClientGone(in.getInt());
+                break;
+            case MOVE:
+                listener.onMove(in.getInt(), in.getInt());
+                break;
+            case PARTICLE_STATE:
+                listener.onParticleState(in.getInt(), in.getInt(), in.getInt(), in.getInt(), in.getInt());
+                break;
+            case PARTICLE_DELTAS:
+                dispatchDeltas(in, listener);
+                break;
+            case PARTICLE_REMOVED:
+                listener.onParticleRemoved(in.getInt());
+                break;
+            case SNAPSHOT:
+                listener.onSnapshot(in.getInt(), in.getDouble());
+                break;
+            case ACK:
+                listener.onAck(in.getInt());
+                break;
+            case RESET:
+                listener.onReset();
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static void dispatchDeltas(ByteBuffer in, Listener listener) {
+        int count = in.getShort() & 0xFFFF;
+        int id = 0;
+        for (int i = 0; i < count; i++) {
+            id += getVarint(in);
+            int flags = in.get();
+            int dx = 0, dy = 0, dvx = 0, dvy = 0;
+            if ((flags & DELTA_POSITION) != 0) {
+                dx = getVarint(in);
+                dy = getVarint(in);
+            }
+            if ((flags & DELTA_VELOCITY) != 0) {
+                dvx = getVarint(in);
+                dvy = getVarint(in);
+            }
+            listener.onParticleDelta(id, dx, dy, dvx, dvy);
+        }
+    }
+}
@@ -1,170 +1,335 @@
 import java.awt.Color;
-import java.io.*;
-import java.net.Socket;
-import java.util.*;
-import java.util.concurrent.Semaphore;
-
-public class ClientHandler implements Runnable {
-    private Socket clientSocket;
-    private OutputStream outputStream;
-    private InputStream inputStream;
-    private int clientId;
-    private int x;
-    private int y;
-    private Color color;
-    private boolean active;
-    private Semaphore activeSem = new Semaphore(1);
-    private List<Particle> particles;
-    private Object particleLock;
-    private List<ClientHandler> clients;
-
-    public ClientHandler(Color color, boolean active, List<Particle> particles, Object particleLock, List<ClientHandler> clients, int clientId) {
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// One connected client. SimulationServer's selector thread calls onReadable()/onWritable() when
+// the socket is ready, so there is no thread per client and nothing runs while a client is idle.
+//
+// Messages are encoded into the batcher under its lock from any thread (the loop thread syncs
+// state, the selector thread relays sprite moves) and go out when it is flushed. A flush writes
+// straight to the socket; whatever the socket does not take is kept in outbound and written
+// once the selector reports the socket writable again.
+//
+// outbound holds at most sendQueueLimit bytes, so a client that stops reading costs the server
+// a bounded amount of memory and never holds up the others. What happens at the limit is the
+// overflow policy:
+//   COALESCE_LATEST  state syncs are skipped and sprite moves are held back, only the latest per
+//                    sprite, until the queue has drained; then the client gets the current state
+//   DROP_OLDEST      the oldest queued batches are dropped, the client is sent RESET and everything
+//                    it should have again
+//   DISCONNECT       the client is disconnected
+public class ClientHandler {
+    private static final Log LOG = Log.get("client");
+
+    public enum OverflowPolicy { COALESCE_LATEST, DROP_OLDEST, DISCONNECT }
+
+    public static final int DEFAULT_SEND_QUEUE_LIMIT = Integer.getInteger("particles.sendQueueLimit", 256 * 1024);
+    public static final OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.valueOf(
+            System.getProperty("particles.slowClientPolicy", "coalesce-latest").replace('-', '_').toUpperCase(Locale.ROOT));
+    // a coalescing client still gets messages that cannot be held back, this far past the limit
+    // it is dropped anyway
+    private static final int COALESCE_HARD_LIMIT_FACTOR = 4;
+
+    private final SocketChannel channel;
+    private SelectionKey key;
+    private final int clientId;
+    private volatile int x;
+    private volatile int y;
+    // set when the sprite moved since the server last broadcast it
+    private final AtomicBoolean spriteMoved = new AtomicBoolean();
+    private final Color color;
+    private volatile boolean active;
+    private final SimulationEngine engine;
+    private final SimulationServer server;
+    private final WireProtocol protocol = WireProtocol.get();
+    // messages from several threads go to one socket, so each one is encoded under the batcher's lock
+    private final OutboundBatcher batcher = new OutboundBatcher();
+    // the particle state this client has been sent, guarded by the batcher lock like the stream
+    private final ClientView view;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(1024);
+    private final OverflowPolicy overflowPolicy = DEFAULT_OVERFLOW_POLICY;
+    private final int sendQueueLimit = DEFAULT_SEND_QUEUE_LIMIT;
+    // batches the socket has not accepted yet, oldest first; only the first may be partly written.
+    // Guarded by writeLock, queuedBytes is what they hold.
+    private final Object writeLock = new Object();
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+    private volatile int queuedBytes;
+    // set when batches were dropped, the next sync or flush resyncs the client; batcher lock
+    private boolean dropped;
+    // sprite moves held back while the queue is full, the latest per client id; batcher lock
+    private final Map<Integer, int[]> heldSprites = new LinkedHashMap<>();
+    // for metrics
+    private volatile int maxQueuedBytes;
+    private volatile long skippedSnapshots, coalescedSprites, droppedBytes, resyncs;
+    private final WireProtocol.Listener movementListener = new WireProtocol.Listener() {
+        @Override
+        public void onMove(int x, int y) {
+            updateMovement(x, y);
+        }
+
+        @Override
+        public void onAck(int seq) {
+            // the tick thread resyncs and resets the view under the same lock
+            synchronized (batcher) {
+                view.acknowledge(seq);
+            }
+        }
+    };
+
+    public ClientHandler(Color color, SimulationEngine engine, SimulationServer server, int clientId, SocketChannel channel) {
         this.color = color;
-        this.active = active;
-        this.particles = particles;
-        this.particleLock = particleLock;
-        this.clients = clients;
+        this.engine = engine;
+        this.server = server;
+        this.channel = channel;
+        this.view = new ClientView(engine.getParticleSize());
         this.x = 640;
         this.y = 360;
         this.clientId = clientId;
+        batcher.setSink(this::write);
     }
 
-    @Override
-    public void run() {
-        while(true) {
+    // Called on the selector thread once the channel is registered
+    public void start(SelectionKey key) {
+        this.key = key;
+        this.active = true;
+        sendInitialData();
+    }
+
+    // Queues a snapshot of the particles around this client's sprite, delta-encoded against what
+    // it already has. particles is a published snapshot's, grid is built from it and time is its
+    // simulation time.
+    public void sendState(ParticleStore particles, ParticleGrid grid, double time) {
+        double spriteCenter = engine.getParticleSize() / 2;
+        synchronized (batcher) {
+            if (overflowPolicy == OverflowPolicy.COALESCE_LATEST && queuedBytes >= sendQueueLimit) {
+                // the baseline is untouched, the first sync after the queue drains carries all changes
+                skippedSnapshots++;
+                return;
+            }
+            resyncIfDropped();
             try {
-                activeSem.acquire();
-                if (active) {
-                    activeSem.release();
-                    try {
-                        sendInitialData(); // Send initial data to the client
-                        while (active) {
-                            // Receive movement updates from the client and update the red pixel position
-                            receiveAndUpdateMovement();
-                        }
-                    } catch (IOException e) {
-                        System.err.println("Client " + clientId + " disconnected");
-                    } finally {
-                        try {
-                            System.out.println("Closing socket of client: " + clientId);
-                            clientSocket.close();
-                            ParticleSimulator.removeClient(this); // Remove the disconnected client
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                } else {
-                    activeSem.release();
+                if (view.writeSnapshot(particles, grid, time, x + spriteCenter, y + spriteCenter, protocol, batcher)
+                        && LOG.isTraceEnabled()) {
+                    LOG.trace("Client %d snapshot %d: %s", clientId, view.getSeq(), view.getLastSnapshotStats());
                 }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+            } catch (IOException e) {
+                close(e);
             }
         }
     }
 
-    public void sendParticleMessage(Particle particle) {
-        StringBuilder message = new StringBuilder("P:");
-        message.append(particle.getID())
-            .append(",")
-            .append((int) particle.getX())
-            .append(",")
-            .append((int) particle.getY())
-            .append(",")
-            .append((double) particle.getVelocity())
-            .append(",")
-            .append((double) particle.getAngle())
-            .append(";");
-        this.sendMessage(message.toString());
-    }
-
-    public void sendSpriteMessageToOtherClient(ClientHandler clientToSendTo, int clientIdThatMoved, int x, int y) {
-        System.out.println("Sending sprite message to OTHER client " + clientToSendTo.getClientId() + " about client " + clientIdThatMoved + " moving to " + x + ", " + y);
-        StringBuilder message = new StringBuilder("C:");
-        message.append(clientIdThatMoved)
-                .append(",")
-                .append(x)
-                .append(",")
-                .append(y)
-                .append(";");
-        // using the ClientHandler of another client, we send the message (so that we send it to the other client and not to ourselves)
-        clientToSendTo.sendMessage(message.toString());
-    }
-
-    public void sendSpriteMessageToThisClient(int clientIdThatMoved, int x, int y) {
-        System.out.println("Sending sprite message to THIS client " + this.clientId + " about client " + clientIdThatMoved + " moving to " + x + ", " + y);
-        StringBuilder message = new StringBuilder("C:");
-        message.append(clientIdThatMoved)
-                .append(",")
-                .append(x)
-                .append(",")
-                .append(y)
-                .append(";");
-        this.sendMessage(message.toString());
-    }
-
-    // This function sends all the current particles to the client
-    public void sendInitialData() {
-        sendAssignedClientId();
-        synchronized (particleLock) {
-            for (Particle particle : particles) {
-                sendParticleMessage(particle);
+    private void sendSprite(int clientIdThatMoved, int x, int y) {
+        synchronized (batcher) {
+            // once one move is held back the later ones are too, so they cannot overtake it
+            if (overflowPolicy == OverflowPolicy.COALESCE_LATEST && (queuedBytes >= sendQueueLimit || !heldSprites.isEmpty())) {
+                heldSprites.put(clientIdThatMoved, new int[]{x, y});
+                coalescedSprites++;
+                return;
             }
+            protocol.writeSprite(batcher.begin(), clientIdThatMoved, x, y);
+            commitMessage();
         }
-        synchronized (clients) {
-            // send sprite positions of other clients to this client
-            for (ClientHandler client : clients) {
-                if (client.getClientId() != this.clientId && client.isActive()) {
-                    // for every client that is not this client, send THEIR positions to THIS client
-                    System.out.println("Initial Sprite pos of " + client.getClientId() + ": sent to other client:" + client.getX() + ", " + client.getY());
-                    sendSpriteMessageToThisClient(client.getClientId(), client.getX(), client.getY());
-                    // for every client that is not this client, send THIS client's position to OTHER clients
-                    sendSpriteMessageToOtherClient(client, this.clientId, this.getX(), this.getY());
-                }
+    }
+
+    // Sends the held back sprite moves once the queue is below its limit, with the batcher lock
+    private void releaseHeldSprites() {
+        if (heldSprites.isEmpty() || queuedBytes >= sendQueueLimit) {
+            return;
+        }
+        for (Map.Entry<Integer, int[]> sprite : heldSprites.entrySet()) {
+            protocol.writeSprite(batcher.begin(), sprite.getKey(), sprite.getValue()[0], sprite.getValue()[1]);
+            commitMessage();
+        }
+        heldSprites.clear();
+    }
+
+    // After batches were dropped the client is missing an unknown part of the stream: it is told
+    // to forget everything, gets the sprites again and the next sync sends every particle in full.
+    // With the batcher lock.
+    private void resyncIfDropped() {
+        if (!dropped) {
+            return;
+        }
+        dropped = false;
+        resyncs++;
+        view.resync();
+        protocol.writeReset(batcher.begin());
+        commitMessage();
+        for (ClientHandler client : server.getClients()) {
+            if (client != this && client.isActive()) {
+                protocol.writeSprite(batcher.begin(), client.getClientId(), client.getX(), client.getY());
+                commitMessage();
             }
         }
     }
 
-    public void sendAssignedClientId() {
-        try {
-            outputStream.write(("ID:" + clientId + ";").getBytes());
-            outputStream.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+    // This function sends the client its id and the sprites, the particles follow with the next state sync
+    private void sendInitialData() {
+        sendAssignedClientId();
+        for (ClientHandler client : server.getClients()) {
+            if (client != this && client.isActive()) {
+                // for every other client, send THEIR position to THIS client and THIS position to THEM
+                sendSprite(client.getClientId(), client.getX(), client.getY());
+                client.sendSprite(this.clientId, this.getX(), this.getY());
+            }
         }
+        // the whole initial state goes out in as few writes as the batcher allows
+        flush();
     }
 
-    public void receiveAndUpdateMovement() throws IOException {
-        byte[] buffer = new byte[1024];
-        System.out.println("Waiting for client " + clientId + " to move");
-        int bytesRead = inputStream.read(buffer);
+    private void sendAssignedClientId() {
+        synchronized (batcher) {
+            protocol.writeHello(batcher.begin(), clientId, x, y);
+            commitMessage();
+        }
+    }
+
+    // Reads whatever the socket has and applies every complete message, on the selector thread
+    public void onReadable() throws IOException {
+        int bytesRead = channel.read(readBuffer);
         if (bytesRead == -1) {
-            // The client has disconnected 
-            // if the bytesRead is -1 
-            // This is a signal by TCP that the socket connection if finished
-            active = false;
-            return;
+            // This is a signal by TCP that the socket connection is finished
+            throw new EOFException("Client " + clientId + " closed the connection");
+        }
+        // a read can end in the middle of a message, the protocol keeps the partial tail for the next read
+        readBuffer.flip();
+        try {
+            protocol.decode(readBuffer, movementListener);
+        } finally {
+            readBuffer.compact();
         }
-        String movementUpdate = new String(buffer, 0, bytesRead).trim();
-        System.out.println("From client " + clientId + ": " + movementUpdate);
-        if (movementUpdate.startsWith("MOVE:")) {
-            String[] parts = movementUpdate.split(":")[1].split(",");
-            int newX = Integer.parseInt(parts[0]);
-            int newY = Integer.parseInt(parts[1]);
-            this.x = newX;
-            this.y = newY;
-            
-            // notify the other clients about the change
-            System.out.print("Move Update from Client" + ": " + this.clientId + ": " + newX + " " + newY);
-            notifySpritePositionsChangedToClients(this.clientId, newX, newY);
-        }
-    }
-
-    private void notifySpritePositionsChangedToClients(int clientId, int x, int y) {
-        synchronized (clients) {
-            for (ClientHandler client : clients) {
-                if (client.getClientId() != this.clientId && client.isActive()) {
-                    sendSpriteMessageToOtherClient(client, clientId, x, y);
+    }
+
+    // Writes what an earlier flush could not, on the selector thread
+    public void onWritable() throws IOException {
+        synchronized (writeLock) {
+            ByteBuffer head;
+            while ((head = outbound.peekFirst()) != null) {
+                int written = channel.write(head);
+                queuedBytes -= written;
+                if (head.hasRemaining()) {
+                    return;
                 }
+                outbound.pollFirst();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    // The batcher's sink: as much as the socket takes now, the rest when it is writable, within
+    // the send queue's limit. Called with the batcher lock held.
+    private void write(ByteBuffer batch) throws IOException {
+        synchronized (writeLock) {
+            int start = batch.position();
+            if (outbound.isEmpty()) {
+                channel.write(batch);
+                if (!batch.hasRemaining()) {
+                    return;
+                }
+                try {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                } catch (CancelledKeyException e) {
+                    throw new ClosedChannelException();
+                }
+                key.selector().wakeup();
+            }
+            int size = batch.remaining();
+            if (queuedBytes + size > sendQueueLimit) {
+                overflow(size);
+            }
+            // queued whole with what the socket took already marked as read, so a partly written
+            // batch is never taken for one that can be dropped
+            ByteBuffer queued = ByteBuffer.allocate(batch.limit() - start);
+            queued.put(batch.array(), batch.arrayOffset() + start, batch.limit() - start).flip();
+            queued.position(batch.position() - start);
+            batch.position(batch.limit());
+            outbound.addLast(queued);
+            queuedBytes += size;
+            if (queuedBytes > maxQueuedBytes) {
+                maxQueuedBytes = queuedBytes;
+            }
+        }
+    }
+
+    // Makes room for incoming more bytes as the policy says, with writeLock held
+    private void overflow(int incoming) throws IOException {
+        switch (overflowPolicy) {
+            case DISCONNECT:
+                throw new IOException("Send queue over " + sendQueueLimit + " bytes");
+            case DROP_OLDEST:
+                // a batch the socket has taken part of has to go out whole
+                Iterator<ByteBuffer> batches = outbound.iterator();
+                if (batches.hasNext() && batches.next().position() == 0) {
+                    batches = outbound.iterator();
+                }
+                while (batches.hasNext() && queuedBytes + incoming > sendQueueLimit) {
+                    int size = batches.next().remaining();
+                    batches.remove();
+                    queuedBytes -= size;
+                    droppedBytes += size;
+                    dropped = true;
+                }
+                break;
+            default:
+                // only what cannot be held back is still queued, this far over the client is gone
+                if (queuedBytes + incoming > sendQueueLimit * COALESCE_HARD_LIMIT_FACTOR) {
+                    throw new IOException("Send queue over " + sendQueueLimit * COALESCE_HARD_LIMIT_FACTOR + " bytes");
+                }
+                break;
+        }
+    }
+
+    private void updateMovement(int newX, int newY) {
+        this.x = newX;
+        this.y = newY;
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Client %d moved to %d,%d", clientId, newX, newY);
+        }
+
+        // the other clients get the latest position with the next tick, however many moves came in
+        if (spriteMoved.compareAndSet(false, true)) {
+            server.spriteMoved(this);
+        }
+    }
+
+    // Takes the sprite off the moved set before its position is read, so a move that comes in
+    // meanwhile puts it back for the next tick
+    boolean clearSpriteMoved() {
+        return spriteMoved.getAndSet(false);
+    }
+
+    // Queues the current position of the moved client's sprite, unless it has disconnected: the
+    // check is under the batcher lock, as notifyGone() is, so a position never follows the
+    // client's CLIENT_GONE
+    void sendSpriteOf(ClientHandler moved) {
+        synchronized (batcher) {
+            if (moved.isActive()) {
+                sendSprite(moved.getClientId(), moved.getX(), moved.getY());
+            }
+        }
+    }
+
+    // Puts the sprite somewhere else, as when a scene is loaded. Before start() this is where
+    // the client spawns; after, the client is sent HELLO with its new position and the others
+    // get it with the next tick.
+    public void moveTo(int x, int y) {
+        this.x = x;
+        this.y = y;
+        if (active) {
+            sendAssignedClientId();
+            if (spriteMoved.compareAndSet(false, true)) {
+                server.spriteMoved(this);
             }
         }
     }
@@ -186,56 +351,86 @@ public class ClientHandler implements Runnable {
     }
 
     public boolean isActive() {
-        boolean temp = false;
-        try {
-            activeSem.acquire();
-            temp = this.active;
-            activeSem.release();
-            
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-        
-        return temp;
+        return active;
     }
 
-    public void setActive(Socket clientSocket) {
-        // Continue receiving position updates from the new client
-        this.clientSocket = clientSocket;
+    // Callers hold the batcher lock and have just encoded one message into batcher.begin()
+    private void commitMessage() {
         try {
-            this.outputStream = clientSocket.getOutputStream();
-            this.inputStream = clientSocket.getInputStream();
+            batcher.commit();
         } catch (IOException e) {
-            e.printStackTrace();
+            close(e);
         }
-        try {
-            activeSem.acquire();
-            this.active = true;
-            activeSem.release();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+    }
+
+    // Writes everything queued since the last flush in one write, called once per tick
+    public void flush() {
+        synchronized (batcher) {
+            resyncIfDropped();
+            releaseHeldSprites();
+            try {
+                batcher.flush();
+            } catch (IOException e) {
+                close(e);
+            }
+        }
+    }
+
+    public String getSendStats() {
+        synchronized (batcher) {
+            return batcher.getStats();
+        }
+    }
+
+    // Bytes handed to the socket that it has not taken yet
+    public int getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    public int getMaxQueuedBytes() {
+        return maxQueuedBytes;
+    }
+
+    // Messages and bytes sent so far and the send queue, for SimulationMetrics
+    public String getTrafficStats() {
+        long messages, bytes;
+        int known;
+        synchronized (batcher) {
+            messages = batcher.getMessagesFlushed();
+            bytes = batcher.getBytesFlushed();
+            known = view.getKnownCount();
         }
+        return String.format("%d messages, %d bytes, %d bytes queued (max %d), %d particles in view, "
+                        + "%d syncs skipped, %d sprite moves coalesced, %d bytes dropped, %d resyncs",
+                messages, bytes, queuedBytes, maxQueuedBytes, known,
+                skippedSnapshots, coalescedSprites, droppedBytes, resyncs);
     }
-    
-    public void sendMessage(String message) {
+
+    // Drops the connection, safe to call from any thread and more than once
+    public void close(IOException cause) {
+        synchronized (this) {
+            if (!active) {
+                return;
+            }
+            active = false;
+        }
+        LOG.info("Client %d disconnected: %s", clientId, cause.getMessage());
+        LOG.info("Closing socket of client %d, sent %s", clientId, getSendStats());
+        key.cancel();
         try {
-            outputStream.write(message.getBytes());
-            outputStream.flush();
+            channel.close();
         } catch (IOException e) {
-            e.printStackTrace();
+            LOG.warn(e, "Could not close the socket of client %d", clientId);
         }
+        // the caller may hold this batcher, the others are told on the selector thread
+        server.removeClient(this);
     }
 
     public void notifyGone(int clientId) {
-        try {
-            if (clientId == this.clientId) {
-                System.out.println("Client " + clientId + " disconnected");
-            } else {
-                outputStream.write(("DISCONNECTED_CLIENT:" + clientId + ";").getBytes());
-                outputStream.flush();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+        synchronized (batcher) {
+            heldSprites.remove(clientId);
+            protocol.writeClientGone(batcher.begin(), clientId);
+            commitMessage();
         }
     }
 }
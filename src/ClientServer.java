@@ -6,13 +6,14 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
-import java.util.HashMap;
-import java.util.Map;
-import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.awt.image.VolatileImage;
 
 public class ClientServer extends JFrame {
-    private static final int WIDTH = 1280;
-    private static final int HEIGHT = 720;
+    private static final Log LOG = Log.get("client");
+    // the window, drawn unscaled around the sprite; ClientView sends the particles in it
+    static final int WIDTH = 1280;
+    static final int HEIGHT = 720;
     private static final int PIXEL_SIZE = 10;
     private static final Color RED_COLOR = Color.RED;
     private static final Color GRAY_COLOR = Color.GRAY;
@@ -29,12 +30,77 @@ public class ClientServer extends JFrame {
     final double zoom2 = Math.min(scale_factor_width, scale_factor_height); 
     private int offsetX, offsetY;
 
-    private final Object redPixelsLock = new Object();
-    private final Object particlesLock = new Object();
+    private static final int FRAME_MILLIS = 16;
 
-    // Map to store positions of red pixels of other clients
-    private Map<Integer, Rectangle> redPixels = new HashMap<>();
-    private Map<Integer, Rectangle> particles = new HashMap<>();
+    // filled by the receive thread, drawn by the EDT
+    private final ReplicatedWorld world = new ReplicatedWorld();
+    private VolatileImage backBuffer;
+
+    private final WireProtocol protocol = WireProtocol.get();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+    // moves are sent from the EDT and acks from the receive thread, both under sendLock
+    private final Object sendLock = new Object();
+    private final ByteBuffer sendBuffer = ByteBuffer.allocate(WireProtocol.MAX_MESSAGE_SIZE);
+    private boolean helloReceived = false;
+    private final WireProtocol.Listener updateListener = new WireProtocol.Listener() {
+        @Override
+        public void onHello(int version, int id, int x, int y) {
+            clientId = id;
+            if (x >= 0 && y >= 0) {
+                redPixel.setLocation(x, y);
+            }
+            helloReceived = true;
+            LOG.info("Assigned client id %d", clientId);
+        }
+
+        @Override
+        public void onParticle(int id, float x, float y, float velocity, float angle) {
+            // the text protocol sends changed particles in full, in its own units
+            double radians = Math.toRadians(angle);
+            world.setParticle(id, ClientView.quantize(x), ClientView.quantize(y),
+                    ClientView.quantize(velocity * Math.cos(radians)), ClientView.quantize(velocity * Math.sin(radians)), System.nanoTime());
+        }
+
+        @Override
+        public void onParticleState(int id, int x, int y, int vx, int vy) {
+            world.setParticle(id, x, y, vx, vy, System.nanoTime());
+        }
+
+        @Override
+        public void onParticleDelta(int id, int dx, int dy, int dvx, int dvy) {
+            world.applyDelta(id, dx, dy, dvx, dvy, System.nanoTime());
+        }
+
+        @Override
+        public void onParticleRemoved(int id) {
+            world.removeParticle(id);
+        }
+
+        @Override
+        public void onSnapshot(int seq, double time) {
+            world.onSnapshot(time, System.nanoTime());
+            try {
+                sendAck(seq);
+            } catch (IOException e) {
+                LOG.warn(e, "Could not acknowledge snapshot %d", seq);
+            }
+        }
+
+        @Override
+        public void onSprite(int id, int x, int y) {
+            world.setSprite(id, x, y);
+        }
+
+        @Override
+        public void onClientGone(int id) {
+            world.removeSprite(id);
+        }
+
+        @Override
+        public void onReset() {
+            world.clear();
+        }
+    };
 
     public ClientServer() {
         setTitle("Client");
@@ -59,7 +125,7 @@ public class ClientServer extends JFrame {
                 try {
                     handleMovement(e.getKeyCode());
                 } catch (IOException ex) {
-                    ex.printStackTrace();
+                    LOG.warn(ex, "Could not send a move");
                 }
             }
         });
@@ -67,49 +133,49 @@ public class ClientServer extends JFrame {
     }
 
     private void draw(Graphics g) {
-        // Create offscreen image
-        BufferedImage offscreenImage = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
-        Graphics2D offscreenGraphics = (Graphics2D) offscreenImage.getGraphics();
-        
+        // the back buffer lives in video memory and is only recreated when it is lost
+        do {
+            GraphicsConfiguration configuration = mainPanel.getGraphicsConfiguration();
+            if (backBuffer == null || backBuffer.validate(configuration) == VolatileImage.IMAGE_INCOMPATIBLE) {
+                backBuffer = mainPanel.createVolatileImage(WIDTH, HEIGHT);
+                if (backBuffer == null) {
+                    return; // not displayable yet
+                }
+            }
+            Graphics2D offscreenGraphics = backBuffer.createGraphics();
+            render(offscreenGraphics, world.acquireFrame());
+            offscreenGraphics.dispose();
+            g.drawImage(backBuffer, 0, 0, mainPanel);
+        } while (backBuffer.contentsLost());
+    }
+
+    private void render(Graphics2D g, ReplicatedWorld.Frame frame) {
         int offsetX = (WIDTH - PIXEL_SIZE) / 2 - redPixel.x;
         int offsetY = (HEIGHT - PIXEL_SIZE) / 2 - redPixel.y;
 
         // Draw background
-        offscreenGraphics.setColor(GRAY_COLOR);
-        offscreenGraphics.fillRect(0, 0, WIDTH, HEIGHT);
-        
+        g.setColor(GRAY_COLOR);
+        g.fillRect(0, 0, WIDTH, HEIGHT);
+
         // Draw red pixel
-        offscreenGraphics.setColor(RED_COLOR);
-        offscreenGraphics.fillRect(redPixel.x + offsetX, redPixel.y + offsetY, PIXEL_SIZE, PIXEL_SIZE);
-        
+        g.setColor(RED_COLOR);
+        g.fillRect(redPixel.x + offsetX, redPixel.y + offsetY, PIXEL_SIZE, PIXEL_SIZE);
+
         // Draw red pixels for other clients
-        Map<Integer, Rectangle> redPixelsCopy;
-        synchronized (redPixelsLock) {
-            redPixelsCopy = new HashMap<>(redPixels);
-        }
-        for (Rectangle otherRedPixel : redPixelsCopy.values()) {
-            offscreenGraphics.fillRect(otherRedPixel.x + offsetX, otherRedPixel.y + offsetY, PIXEL_SIZE, PIXEL_SIZE);
+        for (int i = 0; i < frame.getSpriteCount(); i++) {
+            g.fillRect(frame.getSpriteX(i) + offsetX, frame.getSpriteY(i) + offsetY, PIXEL_SIZE, PIXEL_SIZE);
         }
-        
+
         // Draw white pixels for particles
-        Map<Integer, Rectangle> particlesCopy;
-        synchronized (particlesLock) {
-            particlesCopy = new HashMap<>(particles);
-        }
-        offscreenGraphics.setColor(Color.WHITE);
-        for (Rectangle particle : particlesCopy.values()) {
-            offscreenGraphics.fillRect(particle.x + offsetX, particle.y + offsetY, PIXEL_SIZE, PIXEL_SIZE);
+        g.setColor(Color.WHITE);
+        long now = System.nanoTime();
+        for (int i = 0; i < frame.getParticleCount(); i++) {
+            // a dead-reckoned particle stays inside the world until the server says where it bounced
+            int particleX = (int) Math.max(0, Math.min(WIDTH - PIXEL_SIZE, frame.getX(i, now)));
+            int particleY = (int) Math.max(0, Math.min(HEIGHT - PIXEL_SIZE, frame.getY(i, now)));
+            g.fillRect(particleX + offsetX, particleY + offsetY, PIXEL_SIZE, PIXEL_SIZE);
         }
-        
-        // Dispose of offscreen graphics
-        offscreenGraphics.dispose();
-        
-        // Draw offscreen image onto the main panel
-        g.drawImage(offscreenImage, 0, 0, mainPanel);
     }
-    
-    
-    
 
     private void handleMovement(int keyCode) throws IOException {
         int newX = redPixel.x;
@@ -134,8 +200,11 @@ public class ClientServer extends JFrame {
         redPixel.setLocation(newX, newY);
     
         // Send updated position to the server
-        outputStream.write(("MOVE:" + newX + "," + newY + "\n").getBytes());
-        outputStream.flush();
+        synchronized (sendLock) {
+            sendBuffer.clear();
+            protocol.writeMove(sendBuffer, newX, newY);
+            send();
+        }
 
         int canvasCenterX = getWidth() / 2;
         int canvasCenterY = getHeight() / 2;
@@ -146,73 +215,47 @@ public class ClientServer extends JFrame {
     }
     
 
-    private void receiveInitialData() throws IOException {
-        byte[] buffer = new byte[1024];
-        int bytesRead = inputStream.read(buffer);
-        String initialData = new String(buffer, 0, bytesRead);
-        String[] parts = initialData.split(":");
-        if (parts.length >= 0 && parts[0].equals("INITIAL_DATA")) {
-            // Update the position of the red pixel
-            clientId = Integer.parseInt(parts[1]);
-            redPixel.x = Integer.parseInt(parts[2]);
-            redPixel.y = Integer.parseInt(parts[3]);
-            System.out.println("CLIENTID: " + clientId);
-            mainPanel.repaint();
+    // Tells the server a snapshot has been applied, it stops sending when too many are unacknowledged
+    private void sendAck(int seq) throws IOException {
+        synchronized (sendLock) {
+            sendBuffer.clear();
+            protocol.writeAck(sendBuffer, seq);
+            send();
         }
     }
 
-    public void receiveAndUpdatePositions(String update) {
-        String[] parts = update.split(":");
-        if (parts[0].equals("C")) {
-            String[] pixelData = parts[1].split(";");
-            for (String data : pixelData) {
-                String[] info = data.split(",");
-                if (info.length >= 3) {
-                    int id = Integer.parseInt(info[0]);
-                    int newX = Integer.parseInt(info[1]);
-                    int newY = Integer.parseInt(info[2]);
-                    synchronized (redPixelsLock) {
-                        Rectangle otherRed = redPixels.get(id);
-                        if (otherRed == null) {
-                            otherRed = new Rectangle(newX, newY, PIXEL_SIZE, PIXEL_SIZE);
-                            redPixels.put(id, otherRed);
-                        } else {
-                            otherRed.x = newX;
-                            otherRed.y = newY;
-                        }
-                    }
-                }
+    // Callers hold sendLock and have just encoded one message into sendBuffer
+    private void send() throws IOException {
+        outputStream.write(sendBuffer.array(), 0, sendBuffer.position());
+        outputStream.flush();
+    }
+
+    private void receiveInitialData() throws IOException {
+        // anything that arrives together with the hello is applied as well
+        while (!helloReceived) {
+            if (!readAndDecode()) {
+                throw new IOException("Server closed the connection before sending a client id");
             }
-            mainPanel.repaint();
         }
+        mainPanel.repaint();
     }
-    
-    public void test(String update) {
-        String[] parts = update.split(":");
-        if (parts.length >= 2 && parts[0].equals("P")) {
-            String[] pixelData = parts[1].split(";");
-            for (String data : pixelData) {
-                String[] info = data.split(",");
-                if (info.length >= 3) {
-                    int id = Integer.parseInt(info[0]);
-                    int newX = Integer.parseInt(info[1]);
-                    int newY = Integer.parseInt(info[2]);
-                    synchronized (particlesLock) {
-                        Rectangle otherParticles = particles.get(id);
-                        if (otherParticles == null) {
-                            otherParticles = new Rectangle(newX, newY, PIXEL_SIZE, PIXEL_SIZE);
-                            particles.put(id, otherParticles);
-                        } else {
-                            otherParticles.x = newX;
-                            otherParticles.y = newY;
-                        }
-                    }
-                }
-            }
-            mainPanel.repaint();
+
+    // Reads whatever is available and applies every complete message, false once the server is gone
+    private boolean readAndDecode() throws IOException {
+        int bytesRead = inputStream.read(readBuffer.array(), readBuffer.position(), readBuffer.remaining());
+        if (bytesRead == -1) {
+            return false;
+        }
+        readBuffer.position(readBuffer.position() + bytesRead);
+        readBuffer.flip();
+        try {
+            protocol.decode(readBuffer, updateListener);
+        } finally {
+            readBuffer.compact();
         }
+        world.publish();
+        return true;
     }
-    
 
     public void connectToServer() {
         try {
@@ -225,24 +268,21 @@ public class ClientServer extends JFrame {
             receiveInitialData();
 
             new Thread(this::receiveUpdates).start();
+            // particles move between updates, so the client draws at its own frame rate
+            new Timer(FRAME_MILLIS, e -> mainPanel.repaint()).start();
         } catch (IOException e) {
-            e.printStackTrace();
+            LOG.error(e, "Could not connect to the server");
         }
     }
 
     private void receiveUpdates() {
         try {
-            byte[] buffer = new byte[1024];
-            while (true) {
-                int bytesRead = inputStream.read(buffer);
-                if (bytesRead != -1) {
-                    String update = new String(buffer, 0, bytesRead).trim();
-                    receiveAndUpdatePositions(update);
-                    test(update);
-                }
+            while (readAndDecode()) {
+                // the repaint timer draws the new state on its next frame
             }
+            LOG.info("Server closed the connection");
         } catch (IOException e) {
-            e.printStackTrace();
+            LOG.error(e, "Connection to the server failed");
         }
     }
 
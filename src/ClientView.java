@@ -0,0 +1,312 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// What one client has been told about the particles in its area of interest, a view-sized
+// rectangle around its sprite: the baseline every snapshot is delta-encoded against. A snapshot
+// only looks at the ParticleGrid cells under that rectangle, so its cost and size follow the
+// particles near the client, not the size of the world.
+//
+// Values are kept in the wire's fixed point (WireProtocol.STATE_SCALE), exactly as the client
+// holds them, so the two sides never drift apart.
+//
+// Clients dead-reckon every particle from its last state (ClientServer), so the server predicts
+// the same: a particle is sent when its position is more than the threshold away from where its
+// baseline's velocity would have carried it, or its velocity changed by more than the threshold.
+// A particle flying straight is not sent at all until it hits something.
+//
+// Over TCP everything sent arrives in order, so the baseline is what was last sent rather than
+// what was last acknowledged; acks bound how many snapshots are in flight, and a client that
+// falls behind skips snapshots until it catches up.
+//
+// The baselines are kept per particle the client has, found through a small id hash, so a view
+// costs memory for the particles in it and thousands of clients can each have one. Not
+// thread-safe, the owning ClientHandler calls it under its batcher lock.
+public class ClientView {
+    public static final int DEFAULT_POSITION_THRESHOLD = (int) (0.5f * WireProtocol.STATE_SCALE);
+    public static final int DEFAULT_VELOCITY_THRESHOLD = (int) (1f * WireProtocol.STATE_SCALE);
+    public static final int MAX_SNAPSHOTS_IN_FLIGHT = 8;
+    // the area of interest around the client's sprite, by default ClientServer's window, which
+    // it draws unscaled with the sprite in the middle
+    public static final int DEFAULT_VIEW_WIDTH = Integer.getInteger("particles.viewWidth", ClientServer.WIDTH);
+    public static final int DEFAULT_VIEW_HEIGHT = Integer.getInteger("particles.viewHeight", ClientServer.HEIGHT);
+    // particles only leave the area this far outside it, so one sitting on the edge is not
+    // removed and sent again on every sync
+    public static final int DEFAULT_VIEW_MARGIN = Integer.getInteger("particles.viewMargin", 16);
+
+    private final double particleSize;
+    private final int positionThreshold;
+    private final int velocityThreshold;
+    private double viewWidth = DEFAULT_VIEW_WIDTH;
+    private double viewHeight = DEFAULT_VIEW_HEIGHT;
+    private double viewMargin = DEFAULT_VIEW_MARGIN;
+
+    // slot k holds the particle known[k] the client has: its baseline, the simulation time the
+    // baseline was taken at and the stamp of the last snapshot that contained it
+    private int[] known = new int[16];
+    private int[] x = new int[16], y = new int[16], vx = new int[16], vy = new int[16];
+    private double[] baselineTime = new double[16];
+    private int[] seenStamp = new int[16];
+    private int knownCount;
+    private final IdIndex slots = new IdIndex();
+    private int stamp;
+
+    private int seq;
+    private int ackedSeq;
+
+    // what went into the last snapshot, for stats
+    private int lastStates, lastDeltas, lastRemovals;
+
+    // only valid during writeSnapshot()
+    private WireProtocol protocol;
+    private OutboundBatcher batcher;
+    private ByteBuffer groupOut;
+    private int groupStart, groupCount, previousId;
+    private double time;
+    private double left, right, top, bottom;
+    private double outerLeft, outerRight, outerTop, outerBottom;
+
+    public ClientView(double particleSize) {
+        this(particleSize, DEFAULT_POSITION_THRESHOLD, DEFAULT_VELOCITY_THRESHOLD);
+    }
+
+    public ClientView(double particleSize, int positionThreshold, int velocityThreshold) {
+        this.particleSize = particleSize;
+        this.positionThreshold = positionThreshold;
+        this.velocityThreshold = velocityThreshold;
+    }
+
+    public void setViewSize(double width, double height, double margin) {
+        this.viewWidth = width;
+        this.viewHeight = height;
+        this.viewMargin = margin;
+    }
+
+    // Forgets everything, the next snapshot sends every particle in full
+    public void reset() {
+        slots.clear();
+        knownCount = 0;
+        seq = 0;
+        ackedSeq = 0;
+    }
+
+    // Forgets what the client has after messages to it were dropped, without restarting the
+    // sequence: snapshots that were dropped count as acknowledged, the ones still on their way
+    // are acknowledged as usual. The client is sent RESET first, so nothing it holds is left over.
+    public void resync() {
+        slots.clear();
+        knownCount = 0;
+        ackedSeq = seq;
+    }
+
+    public void acknowledge(int seq) {
+        if (seq > ackedSeq) {
+            ackedSeq = seq;
+        }
+    }
+
+    public int getSeq() {
+        return seq;
+    }
+
+    public int getAckedSeq() {
+        return ackedSeq;
+    }
+
+    public int getKnownCount() {
+        return knownCount;
+    }
+
+    public String getLastSnapshotStats() {
+        return lastStates + " states, " + lastDeltas + " deltas, " + lastRemovals + " removals";
+    }
+
+    // Encodes one snapshot of the particles in the client's area of interest into batcher, false
+    // if it was skipped because the client has too many unacknowledged snapshots. grid must have
+    // been built from particles and time is their simulation time; particles must not change
+    // during the call, a published SimulationSnapshot's or the engine's under its lock.
+    public boolean writeSnapshot(ParticleStore particles, ParticleGrid grid, double time, double centerX, double centerY,
+                                 WireProtocol protocol, OutboundBatcher batcher) throws IOException {
+        boolean deltas = protocol.supportsDeltas();
+        if (deltas && seq - ackedSeq >= MAX_SNAPSHOTS_IN_FLIGHT) {
+            return false;
+        }
+        stamp++;
+        lastStates = lastDeltas = lastRemovals = 0;
+        this.protocol = protocol;
+        this.batcher = batcher;
+        this.time = time;
+
+        // particles enter once they touch the view and leave once they are margin outside it
+        left = centerX - viewWidth / 2.0;
+        right = centerX + viewWidth / 2.0;
+        top = centerY - viewHeight / 2.0;
+        bottom = centerY + viewHeight / 2.0;
+        outerLeft = left - viewMargin;
+        outerRight = right + viewMargin;
+        outerTop = top - viewMargin;
+        outerBottom = bottom + viewMargin;
+
+        // grid cells hold particles by their top-left corner, one that pokes into the area from
+        // the cell to the left or above still counts
+        int firstColumn = grid.column(outerLeft - particleSize), lastColumn = grid.column(outerRight);
+        int firstRow = grid.row(outerTop - particleSize), lastRow = grid.row(outerBottom);
+        int columns = grid.getColumns();
+        if ((lastColumn - firstColumn + 1) * (lastRow - firstRow + 1) >= columns * grid.getRows()) {
+            // a view over the whole world reads the store in order rather than cell by cell
+            for (int i = 0; i < particles.size(); i++) {
+                visit(particles, i, deltas);
+            }
+        } else {
+            int[] cellStart = grid.cellStart;
+            int[] cellParticles = grid.cellParticles;
+            for (int row = firstRow; row <= lastRow; row++) {
+                for (int column = firstColumn; column <= lastColumn; column++) {
+                    int cell = row * columns + column;
+                    for (int k = cellStart[cell]; k < cellStart[cell + 1]; k++) {
+                        visit(particles, cellParticles[k], deltas);
+                    }
+                }
+            }
+        }
+        endDeltas();
+
+        // whatever the client has that was not in this snapshot is gone or has left the area
+        for (int k = knownCount - 1; k >= 0; k--) {
+            if (seenStamp[k] != stamp) {
+                protocol.writeParticleRemoved(batcher.begin(), known[k]);
+                batcher.commit();
+                removeKnown(k);
+                lastRemovals++;
+            }
+        }
+
+        protocol.writeSnapshot(batcher.begin(), ++seq, time);
+        batcher.commit();
+        this.protocol = null;
+        this.batcher = null;
+        return true;
+    }
+
+    private void visit(ParticleStore particles, int i, boolean deltas) throws IOException {
+        double x = particles.getX(i), y = particles.getY(i);
+        if (x + particleSize <= outerLeft || x >= outerRight || y + particleSize <= outerTop || y >= outerBottom) {
+            return;
+        }
+        int id = particles.getID(i);
+        int k = slots.get(id);
+        if (k < 0) {
+            if (x + particleSize <= left || x >= right || y + particleSize <= top || y >= bottom) {
+                return;
+            }
+            endDeltas();
+            k = writeState(id, particles, i);
+        } else {
+            writeChange(k, particles, i, deltas);
+        }
+        seenStamp[k] = stamp;
+    }
+
+    // Sends a particle the client does not have and returns its new slot
+    private int writeState(int id, ParticleStore particles, int i) throws IOException {
+        int qx = quantize(particles.getX(i));
+        int qy = quantize(particles.getY(i));
+        int qvx = quantize(particles.getVelocityX(i));
+        int qvy = quantize(particles.getVelocityY(i));
+        protocol.writeParticleState(batcher.begin(), id, qx, qy, qvx, qvy);
+        batcher.commit();
+        int k = addKnown(id);
+        setBaseline(k, qx, qy, qvx, qvy);
+        lastStates++;
+        return k;
+    }
+
+    private void writeChange(int k, ParticleStore particles, int i, boolean deltas) throws IOException {
+        int id = known[k];
+        int qx = quantize(particles.getX(i)), qy = quantize(particles.getY(i));
+        int qvx = quantize(particles.getVelocityX(i)), qvy = quantize(particles.getVelocityY(i));
+        // old text peers do not dead-reckon, they draw a particle where it was last sent
+        double elapsed = deltas ? time - baselineTime[k] : 0;
+        double errorX = qx - (x[k] + vx[k] * elapsed);
+        double errorY = qy - (y[k] + vy[k] * elapsed);
+        int dvx = qvx - vx[k], dvy = qvy - vy[k];
+        if (Math.abs(errorX) <= positionThreshold && Math.abs(errorY) <= positionThreshold
+                && Math.abs(dvx) <= velocityThreshold && Math.abs(dvy) <= velocityThreshold) {
+            return;
+        }
+        // the delta is against the baseline itself, not the prediction, so the client needs no clock
+        int dx = qx - x[k], dy = qy - y[k];
+        setBaseline(k, qx, qy, qvx, qvy);
+        if (!deltas) {
+            protocol.writeParticleState(batcher.begin(), id, qx, qy, qvx, qvy);
+            batcher.commit();
+            lastStates++;
+            return;
+        }
+        if (groupCount == 0) {
+            groupOut = batcher.begin();
+            groupStart = protocol.beginDeltas(groupOut);
+            previousId = 0;
+        }
+        protocol.writeDelta(groupOut, previousId, id, dx, dy, dvx, dvy);
+        previousId = id;
+        lastDeltas++;
+        if (++groupCount == WireProtocol.MAX_DELTAS_PER_MESSAGE) {
+            endDeltas();
+        }
+    }
+
+    // Closes the open delta message, if there is one
+    private void endDeltas() throws IOException {
+        if (groupCount > 0) {
+            protocol.endDeltas(groupOut, groupStart, groupCount);
+            batcher.commit();
+            groupCount = 0;
+        }
+    }
+
+    static int quantize(double value) {
+        return (int) Math.round(value * WireProtocol.STATE_SCALE);
+    }
+
+    private void setBaseline(int k, int qx, int qy, int qvx, int qvy) {
+        x[k] = qx;
+        y[k] = qy;
+        vx[k] = qvx;
+        vy[k] = qvy;
+        baselineTime[k] = time;
+    }
+
+    private int addKnown(int id) {
+        if (knownCount == known.length) {
+            int length = knownCount * 2;
+            known = Arrays.copyOf(known, length);
+            x = Arrays.copyOf(x, length);
+            y = Arrays.copyOf(y, length);
+            vx = Arrays.copyOf(vx, length);
+            vy = Arrays.copyOf(vy, length);
+            seenStamp = Arrays.copyOf(seenStamp, length);
+            baselineTime = Arrays.copyOf(baselineTime, length);
+        }
+        int k = knownCount++;
+        known[k] = id;
+        slots.put(id, k);
+        return k;
+    }
+
+    // Swap-removes slot k, the last slot moves into it
+    private void removeKnown(int k) {
+        slots.remove(known[k]);
+        int last = --knownCount;
+        if (k != last) {
+            known[k] = known[last];
+            x[k] = x[last];
+            y[k] = y[last];
+            vx[k] = vx[last];
+            vy[k] = vy[last];
+            baselineTime[k] = baselineTime[last];
+            seenStamp[k] = seenStamp[last];
+            slots.put(known[k], k);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+// Runs the simulation and the client server without any window, for rendering-free machines.
+//
+//   java HeadlessSimulator [port] [--load scene] [--save scene]
+//
+// --load starts from a scene saved with SceneFile, --save writes the scene when the JVM exits
+// (Ctrl+C), so a load can be captured once and replayed for profiling.
+public class HeadlessSimulator {
+    private static final Log LOG = Log.get("server");
+
+    public static void main(String[] args) {
+        int port = SimulationServer.DEFAULT_PORT;
+        Path load = null, save = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--load") && i + 1 < args.length) {
+                load = Paths.get(args[++i]);
+            } else if (args[i].equals("--save") && i + 1 < args.length) {
+                save = Paths.get(args[++i]);
+            } else {
+                port = Integer.parseInt(args[i]);
+            }
+        }
+
+        SimulationEngine engine = new SimulationEngine();
+        SimulationServer server = new SimulationServer(engine, port);
+        SimulationLoop loop = new SimulationLoop(engine);
+        loop.addTickListener(server::onTick);
+        engine.getMetrics().register();
+        engine.getMetrics().startReporting();
+        if (load != null) {
+            try {
+                SceneFile.load(load, engine, server);
+            } catch (IOException e) {
+                LOG.error(e, "Could not load %s", load);
+                Log.flush(1000);
+                System.exit(1);
+            }
+        }
+        if (save != null) {
+            Path file = save;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    SceneFile.save(engine, server, file);
+                } catch (IOException e) {
+                    LOG.error(e, "Could not save %s", file);
+                }
+                Log.flush(1000);
+            }, "scene-save"));
+        }
+        loop.start();
+        try {
+            server.run();
+        } catch (IOException e) {
+            LOG.error(e, "Server stopped");
+            Log.flush(1000);
+            System.exit(1);
+        }
+    }
+}
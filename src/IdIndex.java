@@ -0,0 +1,89 @@
+import java.util.Arrays;
+
+// Open-addressing map from particle id to slot, linear probing with backward-shift deletion.
+// Used where per-id arrays would be sized by the largest id rather than by what is stored.
+final class IdIndex {
+    private static final int EMPTY = -1;
+    private int[] keys = newKeys(32);
+    private int[] values = new int[32];
+    private int size;
+
+    // The slot of id, -1 if it is not in the map
+    int get(int id) {
+        int mask = keys.length - 1;
+        for (int h = hash(id) & mask; keys[h] != EMPTY; h = (h + 1) & mask) {
+            if (keys[h] == id) {
+                return values[h];
+            }
+        }
+        return -1;
+    }
+
+    void put(int id, int value) {
+        if ((size + 1) * 2 > keys.length) {
+            rehash(keys.length * 2);
+        }
+        int mask = keys.length - 1;
+        int h = hash(id) & mask;
+        while (keys[h] != EMPTY && keys[h] != id) {
+            h = (h + 1) & mask;
+        }
+        if (keys[h] == EMPTY) {
+            keys[h] = id;
+            size++;
+        }
+        values[h] = value;
+    }
+
+    void remove(int id) {
+        int mask = keys.length - 1;
+        int h = hash(id) & mask;
+        while (keys[h] != id) {
+            if (keys[h] == EMPTY) {
+                return;
+            }
+            h = (h + 1) & mask;
+        }
+        // pull later entries of the probe run back so no lookup stops at the hole
+        int hole = h;
+        for (h = (h + 1) & mask; keys[h] != EMPTY; h = (h + 1) & mask) {
+            int home = hash(keys[h]) & mask;
+            if (((h - home) & mask) >= ((h - hole) & mask)) {
+                keys[hole] = keys[h];
+                values[hole] = values[h];
+                hole = h;
+            }
+        }
+        keys[hole] = EMPTY;
+        size--;
+    }
+
+    void clear() {
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = newKeys(capacity);
+        values = new int[capacity];
+        size = 0;
+        for (int h = 0; h < oldKeys.length; h++) {
+            if (oldKeys[h] != EMPTY) {
+                put(oldKeys[h], oldValues[h]);
+            }
+        }
+    }
+
+    private static int[] newKeys(int capacity) {
+        int[] keys = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        return keys;
+    }
+
+    private static int hash(int id) {
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
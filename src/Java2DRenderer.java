@@ -0,0 +1,34 @@
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+// One Graphics.drawOval per particle, simple and exact but slow past tens of thousands
+public class Java2DRenderer extends ParticleRenderer {
+
+    public Java2DRenderer(double particleSize) {
+        super(particleSize);
+    }
+
+    @Override
+    public String getName() {
+        return "java2d";
+    }
+
+    @Override
+    protected void drawSlots(Graphics2D g, BufferedImage target, ParticleStore particles, int[] slots, int count, int height) {
+        double[] xs = particles.x;
+        double[] ys = particles.y;
+        double[] vxs = particles.vx;
+        double[] vys = particles.vy;
+        if (slots == null) {
+            count = Math.min(count, Math.min(Math.min(xs.length, ys.length), Math.min(vxs.length, vys.length)));
+        }
+        double lag = interpolation;
+        int size = (int) particleSize;
+        for (int k = 0; k < count; k++) {
+            int i = slots == null ? k : slots[k];
+            int x = (int) (xs[i] - vxs[i] * lag);
+            int y = height - (int) (ys[i] - vys[i] * lag) - size;
+            g.drawOval(x, y, size, size);
+        }
+    }
+}
@@ -0,0 +1,300 @@
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Logging for one category, off the threads that log:
+//
+//   private static final Log LOG = Log.get("server");
+//   LOG.info("%d clients connected", count);
+//
+// A message below its category's level costs one comparison. An enabled one is put into a fixed
+// ring of entries with its format and arguments and the caller carries on; the log-writer thread
+// formats it and writes it to stdout (WARN and ERROR to stderr). Callers never wait for the
+// console. When the ring is full, messages are dropped and counted instead. Arguments are
+// formatted later, so pass values that will not change, numbers and strings.
+//
+// Every category passes at most -Dparticles.logRate TRACE, DEBUG and INFO messages a second
+// (100 by default, 0 for no limit). The rest are dropped and counted, and the count is logged
+// once the next second begins. WARN and ERROR are never held back by the limit.
+//
+// Levels are set with -Dparticles.logLevel (INFO) for all categories and
+// -Dparticles.log.<category> for one.
+public final class Log {
+    public enum Level { TRACE, DEBUG, INFO, WARN, ERROR }
+
+    public static final Level DEFAULT_LEVEL = parseLevel(System.getProperty("particles.logLevel"), Level.INFO);
+    public static final int DEFAULT_RATE = Integer.getInteger("particles.logRate", 100);
+    public static final int DEFAULT_BUFFER = Integer.getInteger("particles.logBuffer", 8192);
+
+    private static final ConcurrentHashMap<String, Log> categories = new ConcurrentHashMap<>();
+    private static final Ring ring = new Ring(DEFAULT_BUFFER);
+    private static final long START = System.nanoTime();
+
+    private final String category;
+    private volatile Level level;
+    private final int rate;
+    // the rate limit's current one-second window in the high 32 bits and the messages passed in
+    // it in the low ones, updated with one CAS so loggers never take a lock
+    private final AtomicLong window = new AtomicLong();
+    private final AtomicLong suppressed = new AtomicLong();
+
+    private Log(String category, Level level, int rate) {
+        this.category = category;
+        this.level = level;
+        this.rate = rate;
+    }
+
+    public static Log get(String category) {
+        return categories.computeIfAbsent(category, name ->
+                new Log(name, parseLevel(System.getProperty("particles.log." + name), DEFAULT_LEVEL), DEFAULT_RATE));
+    }
+
+    private static Level parseLevel(String value, Level fallback) {
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return Level.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return fallback;
+        }
+    }
+
+    public String getCategory() {
+        return category;
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.compareTo(this.level) >= 0;
+    }
+
+    public boolean isTraceEnabled() {
+        return isEnabled(Level.TRACE);
+    }
+
+    public boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
+    public void trace(String format, Object... args) {
+        log(Level.TRACE, null, format, args);
+    }
+
+    public void debug(String format, Object... args) {
+        log(Level.DEBUG, null, format, args);
+    }
+
+    public void info(String format, Object... args) {
+        log(Level.INFO, null, format, args);
+    }
+
+    public void warn(String format, Object... args) {
+        log(Level.WARN, null, format, args);
+    }
+
+    public void warn(Throwable error, String format, Object... args) {
+        log(Level.WARN, error, format, args);
+    }
+
+    public void error(String format, Object... args) {
+        log(Level.ERROR, null, format, args);
+    }
+
+    public void error(Throwable error, String format, Object... args) {
+        log(Level.ERROR, error, format, args);
+    }
+
+    // format is only run through String.format when there are arguments
+    public void log(Level level, Throwable error, String format, Object... args) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        // failures are never rate-limited, only the chatty levels below them
+        if (level.compareTo(Level.WARN) < 0) {
+            long dropped = admit();
+            if (dropped < 0) {
+                return;
+            }
+            if (dropped > 0) {
+                ring.offer(Level.WARN, this, null, "%d messages suppressed by the rate limit", new Object[]{dropped});
+            }
+        }
+        ring.offer(level, this, error, format, args);
+    }
+
+    // -1 if the message is over the rate limit, otherwise how many were suppressed in the
+    // window that just ended
+    private long admit() {
+        if (rate <= 0) {
+            return 0;
+        }
+        // windows are counted from 1 so the zeroed state is never the current one
+        long second = (System.nanoTime() - START) / 1_000_000_000L + 1;
+        while (true) {
+            long state = window.get();
+            long stateSecond = state >>> 32;
+            if (stateSecond < second) {
+                // the first message of a new second opens its window and reports the last one
+                if (window.compareAndSet(state, second << 32 | 1)) {
+                    return suppressed.getAndSet(0);
+                }
+            } else if ((int) state >= rate) {
+                suppressed.incrementAndGet();
+                return -1;
+            } else if (window.compareAndSet(state, state + 1)) {
+                return 0;
+            }
+        }
+    }
+
+    // Waits up to timeoutMillis for everything logged so far to be written
+    public static void flush(long timeoutMillis) {
+        ring.awaitEmpty(timeoutMillis);
+    }
+
+    private static final class Entry {
+        // the ring position this slot may be written at next, or that position + 1 once written
+        volatile long sequence;
+        long millis;
+        Level level;
+        Log log;
+        String thread;
+        String format;
+        Object[] args;
+        Throwable error;
+    }
+
+    // A bounded queue of preallocated entries for many producers and the one writer thread, after
+    // Dmitry Vyukov's bounded MPMC queue. A producer claims a position with one CAS; it never
+    // blocks and drops the message if the writer is a whole ring behind.
+    private static final class Ring implements Runnable {
+        private final Entry[] entries;
+        private final int mask;
+        private final AtomicLong tail = new AtomicLong();
+        private final AtomicLong overflowed = new AtomicLong();
+        private volatile long head;
+        private volatile boolean sleeping;
+        private final Thread writer;
+        private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS");
+
+        Ring(int capacity) {
+            int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+            entries = new Entry[size];
+            mask = size - 1;
+            for (int i = 0; i < size; i++) {
+                entries[i] = new Entry();
+                entries[i].sequence = i;
+            }
+            writer = new Thread(this, "log-writer");
+            writer.setDaemon(true);
+            writer.start();
+            // whatever is still in the ring goes out before the JVM exits
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> awaitEmpty(1000), "log-flush"));
+        }
+
+        void offer(Level level, Log log, Throwable error, String format, Object[] args) {
+            Entry entry;
+            long position;
+            while (true) {
+                position = tail.get();
+                entry = entries[(int) position & mask];
+                long difference = entry.sequence - position;
+                if (difference == 0) {
+                    if (tail.compareAndSet(position, position + 1)) {
+                        break;
+                    }
+                } else if (difference < 0) {
+                    // the slot still holds a message from a lap ago
+                    overflowed.incrementAndGet();
+                    return;
+                }
+            }
+            entry.millis = System.currentTimeMillis();
+            entry.level = level;
+            entry.log = log;
+            entry.thread = Thread.currentThread().getName();
+            entry.format = format;
+            entry.args = args;
+            entry.error = error;
+            entry.sequence = position + 1;
+            if (sleeping) {
+                LockSupport.unpark(writer);
+            }
+        }
+
+        @Override
+        public void run() {
+            long reportedOverflow = 0;
+            while (true) {
+                long position = head;
+                Entry entry = entries[(int) position & mask];
+                if (entry.sequence == position + 1) {
+                    write(entry);
+                    entry.log = null;
+                    entry.args = null;
+                    entry.error = null;
+                    entry.sequence = position + entries.length;
+                    head = position + 1;
+                    continue;
+                }
+                long overflow = overflowed.get();
+                if (overflow != reportedOverflow) {
+                    System.err.println(timeFormat.format(new Date()) + " WARN  [log] " + (overflow - reportedOverflow)
+                            + " messages dropped, the log buffer was full");
+                    reportedOverflow = overflow;
+                }
+                System.out.flush();
+                System.err.flush();
+                // producers unpark the writer once sleeping is set; the timeout covers the race
+                // with one that published just before
+                sleeping = true;
+                if (entries[(int) head & mask].sequence != head + 1) {
+                    LockSupport.parkNanos(this, 100_000_000L);
+                }
+                sleeping = false;
+            }
+        }
+
+        private void write(Entry entry) {
+            String message;
+            try {
+                message = entry.args == null || entry.args.length == 0
+                        ? entry.format : String.format(Locale.ROOT, entry.format, entry.args);
+            } catch (RuntimeException e) {
+                message = entry.format + " (bad log format: " + e + ")";
+            }
+            StringBuilder line = new StringBuilder(64 + message.length());
+            line.append(timeFormat.format(new Date(entry.millis))).append(' ')
+                    .append(String.format("%-5s", entry.level)).append(" [").append(entry.log.getCategory()).append("] ");
+            if (entry.level.compareTo(Level.DEBUG) <= 0) {
+                line.append('(').append(entry.thread).append(") ");
+            }
+            line.append(message);
+            PrintStream out = entry.level.compareTo(Level.WARN) >= 0 ? System.err : System.out;
+            out.println(line);
+            if (entry.error != null) {
+                entry.error.printStackTrace(out);
+            }
+        }
+
+        void awaitEmpty(long timeoutMillis) {
+            long deadline = System.nanoTime() + timeoutMillis * 1_000_000L;
+            while (head < tail.get() && System.nanoTime() < deadline) {
+                LockSupport.unpark(writer);
+                LockSupport.parkNanos(1_000_000L);
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+// Collects the encoded messages for one connection and writes them in one go.
+// Messages are appended with begin()/commit(); the batch goes out when flush() is called
+// (once per tick) or as soon as it holds flushThreshold bytes, so a burst of thousands of
+// messages costs a handful of writes instead of one write and flush each.
+//
+// Not thread-safe, the owner synchronizes on the batcher.
+public class OutboundBatcher {
+    // Where a batch goes; it must take all of it, copying whatever it cannot send right away
+    public interface Sink {
+        void write(ByteBuffer batch) throws IOException;
+    }
+
+    public static final int DEFAULT_FLUSH_THRESHOLD = 64 * 1024;
+
+    private final ByteBuffer buffer;
+    private final int flushThreshold;
+    private Sink sink;
+    private int pendingMessages;
+
+    private long flushes;
+    private long bytesFlushed;
+    private long messagesFlushed;
+    private int lastFlushBytes;
+    private int lastFlushMessages;
+
+    public OutboundBatcher() {
+        this(DEFAULT_FLUSH_THRESHOLD);
+    }
+
+    public OutboundBatcher(int flushThreshold) {
+        this.flushThreshold = flushThreshold;
+        // one message past the threshold always fits, so the buffer never has to grow
+        this.buffer = ByteBuffer.allocate(flushThreshold + WireProtocol.MAX_MESSAGE_SIZE);
+    }
+
+    public void setSink(Sink sink) {
+        this.sink = sink;
+        buffer.clear();
+        pendingMessages = 0;
+    }
+
+    public void setOutputStream(OutputStream out) {
+        setSink(batch -> {
+            out.write(batch.array(), batch.arrayOffset() + batch.position(), batch.remaining());
+            out.flush();
+        });
+    }
+
+    // The buffer to encode exactly one message into, follow with commit()
+    public ByteBuffer begin() {
+        return buffer;
+    }
+
+    public void commit() throws IOException {
+        pendingMessages++;
+        if (buffer.position() >= flushThreshold) {
+            flush();
+        }
+    }
+
+    public boolean isEmpty() {
+        return buffer.position() == 0;
+    }
+
+    public int pendingBytes() {
+        return buffer.position();
+    }
+
+    public void flush() throws IOException {
+        int bytes = buffer.position();
+        if (bytes == 0) {
+            return;
+        }
+        int messages = pendingMessages;
+        buffer.flip();
+        try {
+            sink.write(buffer);
+        } finally {
+            // the batch is dropped even if the write fails, a broken connection must not pile up data
+            buffer.clear();
+            pendingMessages = 0;
+        }
+
+        flushes++;
+        bytesFlushed += bytes;
+        messagesFlushed += messages;
+        lastFlushBytes = bytes;
+        lastFlushMessages = messages;
+    }
+
+    public long getFlushes() { return flushes; }
+    public long getBytesFlushed() { return bytesFlushed; }
+    public long getMessagesFlushed() { return messagesFlushed; }
+    public int getLastFlushBytes() { return lastFlushBytes; }
+    public int getLastFlushMessages() { return lastFlushMessages; }
+
+    public String getStats() {
+        double bytesPerFlush = flushes == 0 ? 0 : (double) bytesFlushed / flushes;
+        double messagesPerFlush = flushes == 0 ? 0 : (double) messagesFlushed / flushes;
+        return String.format("%d flushes, %d bytes, %d messages (%.1f bytes and %.1f messages per flush)",
+                flushes, bytesFlushed, messagesFlushed, bytesPerFlush, messagesPerFlush);
+    }
+}
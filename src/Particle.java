@@ -1,77 +1,63 @@
+// Lightweight view of one particle slot in a ParticleStore.
+// A particle created with the public constructor gets its own one-slot store, which is how
+// new particles are described before they are added to the simulation's store.
 public class Particle {
-    private double x, y, vx, vy;
-    int id;
-	//x, y = world coordinates
-	//vx, vy = movement vector
-    private double velocity; 
-    private double angle; 
+    private final ParticleStore store;
+    private final int index;
 
     public Particle(int id, double x, double y, double velocity, double angle) {
-        this.id = id;
-        this.x = x;
-        this.y = y;
-        this.velocity = velocity;
-		this.vx = velocity * Math.cos(Math.toRadians(angle));
-		this.vy = velocity * Math.sin(Math.toRadians(angle));
-        this.angle = angle;
+        this.store = new ParticleStore(1);
+        this.index = store.add(id, x, y, velocity, angle);
+    }
+
+    // View over an existing slot, see ParticleStore.get
+    Particle(ParticleStore store, int index) {
+        this.store = store;
+        this.index = index;
     }
 
     public void move(double deltaTime) {
-        x += vx * deltaTime; 
-        y += vy * deltaTime;
+        store.move(index, deltaTime);
     }
 
     public int getID(){
-        return id;
+        return store.getID(index);
     }
 
     public double get_next_x(double deltaTime) {
-        return x + vx * deltaTime;
+        return store.getNextX(index, deltaTime);
     }
 
     public double get_next_y(double deltaTime) {
-        return y + vy * deltaTime;
+        return store.getNextY(index, deltaTime);
     }
 
     public void bounceHorizontal() {
-        angle = 180 - angle;
-		recalculateV();
+        store.bounceHorizontal(index);
     }
-    
+
     public void setAngle(double angle){
-        this.angle = angle;
-		recalculateV();
+        store.setAngle(index, angle);
     }
     public void bounceVertical() {
-        angle = -angle;
-		recalculateV();
+        store.bounceVertical(index);
     }
 
     public void bounceOffWall(double wallAngle) {
-        double wallNormalX = Math.cos(wallAngle + Math.PI / 2); 
-        double wallNormalY = Math.sin(wallAngle + Math.PI / 2);
-    
-        double dotProduct = vx * wallNormalX + vy * wallNormalY;
-    
-        double reflectX = vx - 2 * dotProduct * wallNormalX;
-        double reflectY = vy - 2 * dotProduct * wallNormalY;
-    
-        angle = Math.toDegrees(Math.atan2(reflectY, reflectX));
-		recalculateV();
+        store.bounceOffWall(index, wallAngle);
     }
-    
+
 	public void recalculateV() {
-		vx = velocity * Math.cos(Math.toRadians(angle));
-		vy = velocity * Math.sin(Math.toRadians(angle));
+		store.recalculateV(index);
 	}
 
     public double getAngle() {
-        return angle;
+        return store.getAngle(index);
     }
 
-    public double getX() { return x; }
-    public double getY() { return y; }
-    public double getVelocity() { return velocity; }
-    public double getVelocityX() { return vx; }
-    public double getVelocityY() { return vy; }
+    public double getX() { return store.getX(index); }
+    public double getY() { return store.getY(index); }
+    public double getVelocity() { return store.getVelocity(index); }
+    public double getVelocityX() { return store.getVelocityX(index); }
+    public double getVelocityY() { return store.getVelocityY(index); }
 }
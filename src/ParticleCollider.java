@@ -0,0 +1,116 @@
+// Elastic particle-particle collisions between equal-mass, equal-size particles.
+// The broad phase is a ParticleGrid with cells one particle wide, so every contact of a
+// particle is in its own cell or one of the 8 around it.
+//
+// Each particle's new velocity is computed from the old velocities of all its contacts
+// (a Jacobi step), which lets the narrow phase run in parallel without locking pairs:
+// a thread only ever writes the velocities of the particles in its own chunk.
+public class ParticleCollider {
+    private final ParticleGrid grid;
+    private final double diameter;
+
+    private double[] newVx = new double[0];
+    private double[] newVy = new double[0];
+    private boolean[] hit = new boolean[0];
+
+    private ParticleStore store;
+    private final TickEngine.ChunkTask collide = this::collide;
+    private final TickEngine.ChunkTask apply = this::apply;
+
+    public ParticleCollider(double worldWidth, double worldHeight, double particleSize) {
+        this.diameter = particleSize;
+        this.grid = new ParticleGrid(worldWidth, worldHeight, particleSize);
+    }
+
+    public ParticleGrid getGrid() {
+        return grid;
+    }
+
+    public void resolve(ParticleStore store, TickEngine tickEngine) {
+        int n = store.size();
+        if (newVx.length < n) {
+            int capacity = Math.max(n, newVx.length + (newVx.length >> 1));
+            newVx = new double[capacity];
+            newVy = new double[capacity];
+            hit = new boolean[capacity];
+        }
+        this.store = store;
+        grid.build(store, tickEngine);
+        tickEngine.forEach(n, collide);
+        tickEngine.forEach(n, apply);
+        this.store = null;
+    }
+
+    private void collide(int from, int to) {
+        double[] xs = store.x;
+        double[] ys = store.y;
+        double[] vxs = store.vx;
+        double[] vys = store.vy;
+        int[] cellStart = grid.cellStart;
+        int[] cellParticles = grid.cellParticles;
+        int columns = grid.getColumns();
+        int rows = grid.getRows();
+        double diameterSquared = diameter * diameter;
+
+        for (int i = from; i < to; i++) {
+            double x = xs[i];
+            double y = ys[i];
+            double vx = vxs[i];
+            double vy = vys[i];
+            double dvx = 0;
+            double dvy = 0;
+            int contacts = 0;
+
+            int column = grid.column(x);
+            int row = grid.row(y);
+            int minColumn = Math.max(0, column - 1);
+            int maxColumn = Math.min(columns - 1, column + 1);
+            int maxRow = Math.min(rows - 1, row + 1);
+            for (int r = Math.max(0, row - 1); r <= maxRow; r++) {
+                // the cells of a row are contiguous, so one range covers all three columns
+                int start = cellStart[r * columns + minColumn];
+                int end = cellStart[r * columns + maxColumn + 1];
+                for (int k = start; k < end; k++) {
+                    int j = cellParticles[k];
+                    if (j == i) {
+                        continue;
+                    }
+                    double dx = x - xs[j];
+                    double dy = y - ys[j];
+                    double distanceSquared = dx * dx + dy * dy;
+                    if (distanceSquared >= diameterSquared || distanceSquared == 0) {
+                        continue;
+                    }
+                    // only exchange momentum while the pair is still closing in
+                    double relativeVx = vx - vxs[j];
+                    double relativeVy = vy - vys[j];
+                    double approach = relativeVx * dx + relativeVy * dy;
+                    if (approach >= 0) {
+                        continue;
+                    }
+                    double impulse = approach / distanceSquared;
+                    dvx -= impulse * dx;
+                    dvy -= impulse * dy;
+                    contacts++;
+                }
+            }
+            // a lone pair gets the exact elastic exchange; with several simultaneous contacts the
+            // summed impulses would overshoot and pump energy in, so they are averaged instead
+            if (contacts > 1) {
+                dvx /= contacts;
+                dvy /= contacts;
+            }
+            newVx[i] = vx + dvx;
+            newVy[i] = vy + dvy;
+            hit[i] = contacts > 0;
+        }
+    }
+
+    private void apply(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (hit[i]) {
+                store.setVelocityVector(i, newVx[i], newVy[i]);
+            }
+        }
+    }
+}
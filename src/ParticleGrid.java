@@ -0,0 +1,81 @@
+import java.util.Arrays;
+
+// Uniform-grid spatial hash over the particles of a ParticleStore.
+// build() counting-sorts the slot indices by cell, so the particles of cell c are
+// cellParticles[cellStart[c] .. cellStart[c + 1]). Particles outside the world are
+// clamped into the edge cells. The index is a picture of the store at build time and
+// has to be rebuilt after particles move.
+public class ParticleGrid {
+    private final double cellSize;
+    private final int columns, rows;
+
+    // package-private for the same reason as ParticleStore's arrays
+    final int[] cellStart;
+    int[] cellParticles = new int[0];
+    private int[] particleCell = new int[0];
+    private int size;
+
+    private ParticleStore store;
+    private final TickEngine.ChunkTask assignCells = this::assignCells;
+
+    public ParticleGrid(double worldWidth, double worldHeight, double cellSize) {
+        this.cellSize = cellSize;
+        this.columns = Math.max(1, (int) Math.ceil(worldWidth / cellSize));
+        this.rows = Math.max(1, (int) Math.ceil(worldHeight / cellSize));
+        this.cellStart = new int[columns * rows + 1];
+    }
+
+    public double getCellSize() { return cellSize; }
+    public int getColumns() { return columns; }
+    public int getRows() { return rows; }
+    public int size() { return size; }
+
+    public int column(double x) {
+        return Math.max(0, Math.min(columns - 1, (int) Math.floor(x / cellSize)));
+    }
+
+    public int row(double y) {
+        return Math.max(0, Math.min(rows - 1, (int) Math.floor(y / cellSize)));
+    }
+
+    public void build(ParticleStore store, TickEngine tickEngine) {
+        int n = store.size();
+        if (particleCell.length < n) {
+            int capacity = Math.max(n, particleCell.length + (particleCell.length >> 1));
+            particleCell = new int[capacity];
+            cellParticles = new int[capacity];
+        }
+        this.store = store;
+        this.size = n;
+        // the cell of every particle is computed in parallel, the counting sort itself is a
+        // sequential O(n) pass that is cheap next to the collision work
+        tickEngine.forEach(n, assignCells);
+        this.store = null;
+
+        int cells = columns * rows;
+        Arrays.fill(cellStart, 0);
+        for (int i = 0; i < n; i++) {
+            cellStart[particleCell[i] + 1]++;
+        }
+        for (int c = 0; c < cells; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        // scatter, using the end of each cell as the cursor and walking backwards keeps
+        // the slots in ascending order within a cell
+        for (int i = n - 1; i >= 0; i--) {
+            int cell = particleCell[i];
+            cellParticles[--cellStart[cell + 1]] = i;
+        }
+        // cellStart[c + 1] now holds the start of cell c, shift everything down by one
+        System.arraycopy(cellStart, 1, cellStart, 0, cells);
+        cellStart[cells] = n;
+    }
+
+    private void assignCells(int from, int to) {
+        double[] xs = store.x;
+        double[] ys = store.y;
+        for (int i = from; i < to; i++) {
+            particleCell[i] = row(ys[i]) * columns + column(xs[i]);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.List;
+
+// Draws the world into an image. The world's y axis points up, so everything is flipped
+// against the height of the target. Kept separate from SimulatorPanel so it can draw into
+// an off-screen image without a window.
+//
+// Particles can be drawn by Java2D ("java2d") or written straight into the image's pixels
+// ("raster", "raster-parallel"), picked with -Dparticles.renderer or at runtime in the UI.
+// Walls are always drawn by Java2D, there are few of them.
+//
+// Given a ParticleGrid, only the cells on screen are drawn, so zooming in on a small part of
+// the world costs what is visible. When the world is not zoomed in (at most one pixel per world
+// unit) a cell holding more than TILE_DENSITY particles is drawn as one tile shaded by how full
+// it is: its outlines would overlap into a blob anyway, and the whole world then costs a tile per
+// dense cell rather than a particle each. Zoomed in, every particle is drawn.
+public abstract class ParticleRenderer {
+    public static final String[] NAMES = {"java2d", "raster", "raster-parallel"};
+    public static final String DEFAULT_NAME = System.getProperty("particles.renderer", "java2d");
+    public static final int TILE_DENSITY = Integer.getInteger("particles.tileDensity", 64);
+    // tiles get one of this many shades, from just over TILE_DENSITY to eight times as full
+    private static final int TILE_SHADES = 8;
+
+    private static final BasicStroke WALL_STROKE = new BasicStroke(20);
+
+    protected final double particleSize;
+    // seconds to draw every particle back along its velocity, see SimulationLoop.getInterpolation()
+    protected double interpolation;
+
+    // slots of the particles in the visible sparse cells, reused between frames
+    private int[] visible = new int[1024];
+    private final Color[] tileColors = new Color[TILE_SHADES];
+
+    protected ParticleRenderer(double particleSize) {
+        this.particleSize = particleSize;
+    }
+
+    public static ParticleRenderer create(String name, double particleSize) {
+        switch (name) {
+            case "java2d":
+                return new Java2DRenderer(particleSize);
+            case "raster":
+                return new RasterRenderer(particleSize, 1);
+            case "raster-parallel":
+                return new RasterRenderer(particleSize, Runtime.getRuntime().availableProcessors());
+            default:
+                throw new IllegalArgumentException("Unknown renderer: " + name);
+        }
+    }
+
+    public abstract String getName();
+
+    public void setInterpolation(double seconds) {
+        this.interpolation = seconds;
+    }
+
+    // Draws particles[slots[0 .. count)] in g's colour, or the first count particles when slots
+    // is null. g draws into target.
+    protected abstract void drawSlots(Graphics2D g, BufferedImage target, ParticleStore particles, int[] slots, int count, int height);
+
+    // Draws every particle in g's colour. g draws into target.
+    public void drawParticles(Graphics2D g, BufferedImage target, ParticleStore particles, int height) {
+        // read the size before the arrays: the store only ever swaps in bigger arrays
+        drawSlots(g, target, particles, null, particles.size(), height);
+    }
+
+    // Draws the particles in the grid cells that are on screen; grid must have been built from
+    // particles, the store may have moved on since
+    public void drawParticles(Graphics2D g, BufferedImage target, ParticleStore particles, ParticleGrid grid, int height) {
+        Rectangle2D view = visibleArea(g, target, height);
+        if (view == null) {
+            drawParticles(g, target, particles, height);
+            return;
+        }
+        // cells hold particles by their bottom-left corner, one poking in from the left or
+        // below still shows; interpolation may draw a particle up to a cell from where it is
+        double cellSize = grid.getCellSize();
+        int firstColumn = grid.column(view.getMinX() - particleSize - cellSize), lastColumn = grid.column(view.getMaxX() + cellSize);
+        int firstRow = grid.row(view.getMinY() - particleSize - cellSize), lastRow = grid.row(view.getMaxY() + cellSize);
+        int columns = grid.getColumns();
+        int[] cellStart = grid.cellStart;
+        int[] cellParticles = grid.cellParticles;
+        Color color = g.getColor();
+        AffineTransform transform = g.getTransform();
+        boolean tiles = Math.hypot(transform.getScaleX(), transform.getShearY()) <= 1 + 1e-9;
+
+        int count = 0;
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                int cell = row * columns + column;
+                int from = cellStart[cell], to = cellStart[cell + 1];
+                if (tiles && to - from > TILE_DENSITY) {
+                    g.setColor(tileColor(color, to - from));
+                    g.fillRect((int) (column * cellSize), height - (int) ((row + 1) * cellSize), (int) cellSize, (int) cellSize);
+                    continue;
+                }
+                if (count + to - from > visible.length) {
+                    visible = Arrays.copyOf(visible, Math.max(count + to - from, visible.length * 2));
+                }
+                System.arraycopy(cellParticles, from, visible, count, to - from);
+                count += to - from;
+            }
+        }
+        g.setColor(color);
+        drawSlots(g, target, particles, visible, count, height);
+    }
+
+    // The part of the world target shows, in world coordinates (y up), or null if the transform
+    // cannot be inverted
+    private Rectangle2D visibleArea(Graphics2D g, BufferedImage target, int height) {
+        Rectangle2D screen;
+        try {
+            screen = g.getTransform().createInverse()
+                    .createTransformedShape(new Rectangle2D.Double(0, 0, target.getWidth(), target.getHeight())).getBounds2D();
+        } catch (NoninvertibleTransformException e) {
+            return null;
+        }
+        // outlines are a pixel wider than the particle
+        return new Rectangle2D.Double(screen.getMinX() - 1, height - screen.getMaxY() - 1, screen.getWidth() + 2, screen.getHeight() + 2);
+    }
+
+    // A shade of the particle colour, more opaque the fuller the cell
+    private Color tileColor(Color color, int particles) {
+        int shade = Math.min(TILE_SHADES - 1, (particles - 1) / TILE_DENSITY - 1);
+        Color tile = tileColors[shade];
+        if (tile == null || (tile.getRGB() & 0xFFFFFF) != (color.getRGB() & 0xFFFFFF)) {
+            int alpha = 96 + (255 - 96) * shade / (TILE_SHADES - 1);
+            tile = new Color(color.getRed(), color.getGreen(), color.getBlue(), alpha);
+            tileColors[shade] = tile;
+        }
+        return tile;
+    }
+
+    // Draws the walls that cross the part of the world target shows
+    public void drawWalls(Graphics g, BufferedImage target, List<Wall> walls, int height) {
+        Graphics2D g2 = (Graphics2D) g;
+        Rectangle2D view = visibleArea(g2, target, height);
+        g2.setStroke(WALL_STROKE);
+        g2.setPaint(Color.BLACK);
+        double halfStroke = WALL_STROKE.getLineWidth() / 2;
+        for (Wall wall : walls) {
+            if (view != null && (Math.max(wall.getX1(), wall.getX2()) + halfStroke < view.getMinX()
+                    || Math.min(wall.getX1(), wall.getX2()) - halfStroke > view.getMaxX()
+                    || Math.max(wall.getY1(), wall.getY2()) + halfStroke < view.getMinY()
+                    || Math.min(wall.getY1(), wall.getY2()) - halfStroke > view.getMaxY())) {
+                continue;
+            }
+            int x1 = (int) wall.getX1();
+            int y1 = height - (int) wall.getY1();
+            int x2 = (int) wall.getX2();
+            int y2 = height - (int) wall.getY2();
+            g2.drawLine(x1, y1, x2, y2);
+        }
+    }
+
+    // Stops any threads the renderer started
+    public void shutdown() {
+    }
+}
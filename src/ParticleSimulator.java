@@ -3,188 +3,57 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.CountDownLatch;
 import java.util.List;
 import java.awt.image.BufferedImage;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.io.*;
+import java.nio.file.Path;
 import java.util.*;
 
 public class ParticleSimulator extends JFrame {
+    private static final Log LOG = Log.get("server");
 
     private static SimulatorPanel simulatorPanel;
-    private final ExecutorService executorService;
+    private final SimulationEngine engine;
+    private final SimulationServer server;
+    private final SimulationLoop loop;
     private static double lastUpdateTime;
     private boolean zoomed = false;
     private static int fps;
     private static int frames;
+    private static int tps;
+    private static long lastTicks;
     private JTextField wX1, wX2, wY1, wY2, numInputs, n2, n3, xStartField, yStartField, xEndField, yEndField, startAngleField, endAngleField, startVelocityField, endVelocityField, singleX, singleY, singleV, singleA;
     private int spriteX, spriteY;
     private static final int SPRITE_SPEED = 1;
+    private static final double VIEW_CELL_SIZE = 32;
+    // the panel repaints on its own clock, independent of the physics tick rate
+    private static final int FRAME_MILLIS = 1000 / Integer.getInteger("particles.fps", 60);
     private JComboBox<String> dropdownBox;
-    private static List<ClientHandler> clients = new ArrayList<>();
-    private int particleID = 1;
-    ServerSocket serverSocket;
-    private static int clientCount = 0;
-    private static Semaphore clientCountSem = new Semaphore(1);
-
-    private static final Object particleLock = new Object(); //Object just for synchronized blocks
 
     private JPanel inputPanel;
 
-    public ParticleSimulator() {
+    public ParticleSimulator(SimulationEngine engine, SimulationServer server, SimulationLoop loop) {
         super("Particle Simulator");
-        final double targetFPS = 80.0;
-        final double targetFrameTime = 1.0 / targetFPS;
-        //long elapsedTime, sleepTime;
-        final double deltaTime = 0.016;
-        final double particleSize = 10;
-        executorService = Executors.newWorkStealingPool();
+        this.engine = engine;
+        this.server = server;
+        this.loop = loop;
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        simulatorPanel = new SimulatorPanel(deltaTime, particleSize);
+        simulatorPanel = new SimulatorPanel(engine.getParticleSize());
         simulatorPanel.setPreferredSize(new Dimension(1280, 720));
         add(simulatorPanel);
         setupUserInterface();
         pack();
         setVisible(true);
-        try {
-            serverSocket = new ServerSocket(12345);
-            System.out.println("Master Server started.");
-
-            // Start a thread to handle the movement of the white pixel
-            new Thread(() -> {
-                while (true) {
-                    long startTime = System.nanoTime();
-                    synchronized (particleLock) {
-                        updateParticles(deltaTime, particleSize);
-                    }
-                    repaint();
-            
-                    final long elapsedTime = System.nanoTime() - startTime;
-                    final long sleepTime = (long) ((targetFrameTime - elapsedTime / 1e9) * 1000);
-            
-                    if (sleepTime > 0) {
-                        try {
-                            Thread.sleep(sleepTime);
-                        } catch (InterruptedException e) {
-                            Thread.currentThread().interrupt();
-                        }
-            }
-                }
-            }).start();
-
-            // create all the clients and make them just wait
-            ClientHandler redClient = new ClientHandler(Color.RED, false, simulatorPanel.getParticles(), particleLock, clients, 1);
-            Thread redThread = new Thread(redClient);
-            redThread.start();
-            ParticleSimulator.clients.add(redClient);
-
-            ClientHandler greenClient = new ClientHandler(Color.RED, false, simulatorPanel.getParticles(), particleLock, clients, 2);
-            Thread greenThread = new Thread(greenClient);
-            greenThread.start();
-            ParticleSimulator.clients.add(greenClient);
-
-            ClientHandler blueClient = new ClientHandler(Color.RED, false, simulatorPanel.getParticles(), particleLock, clients, 3);
-            Thread blueThread = new Thread(blueClient);
-            blueThread.start();
-            ParticleSimulator.clients.add(blueClient);
-
-            while (true) {
-                try {
-                    clientCountSem.acquire();
-                    if (clientCount < 3) {
-                        clientCountSem.release();
-                        System.out.println("Waiting for new client...");
-                        Socket clientSocket = serverSocket.accept();
-                        System.out.println("New client connected");
-                    
-                        for (ClientHandler client : clients){
-                            if (!client.isActive()) {
-                                client.setActive(clientSocket);
-                                try {
-                                    clientCountSem.acquire();
-                                    ParticleSimulator.clientCount++; // consider synchronizing this
-                                    System.out.println("Current Client Count: " + clientCount);
-                                    clientCountSem.release();
-                                } catch (InterruptedException e) {
-                                    e.printStackTrace();
-                                }
-                                break;
-                            }
-                        }
-                    } else {
-                        clientCountSem.release();
-                    }
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        } 
+        new javax.swing.Timer(FRAME_MILLIS, e -> simulatorPanel.repaint()).start();
     }
 
     public SimulatorPanel getSimulatorPanel() {
         return simulatorPanel;
     }
 
-    public static void removeClient(ClientHandler client) {
-        synchronized (clients) {
-            System.out.print("clientCount--");
-            try {
-                clientCountSem.acquire();
-                ParticleSimulator.clientCount--;
-                clientCountSem.release();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-            clientGone(client.getClientId());
-        }
-    }
-
-    private static void clientGone(int clientId) {
-        for (ClientHandler client : clients) {
-            if (client.isActive()) {
-                client.notifyGone(clientId);
-            }
-        }
-    }
-
-    private static void notifyNewParticleToClients(Particle newParticles) {
-        synchronized (clients) { // you cannot remove or add clients while we are still sending the new particles? do we need this?
-            for (ClientHandler client : clients) {
-                if (client.isActive()) {
-                    client.sendParticleMessage(newParticles);
-                }
-            }
-        }
-    }
-    
-
-    private void updateParticles(double deltaTime, double particleSize) {
-        CountDownLatch latch = new CountDownLatch(simulatorPanel.getParticles().size());
-
-        for (Particle particle : simulatorPanel.getParticles()) {
-            executorService.submit(() -> {
-                particle.move(deltaTime);
-                simulatorPanel.checkWallCollision(particle, deltaTime, particleSize);
-                latch.countDown();
-            });
-        }
-        try {
-            latch.await();
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-        }
-    }
-
     private void setupUserInterface() {
         //dropdownBox = new JComboBox<>(new String[]{"Default singular particle", "Const Velocity + Angle", "Const Start + Varying Angle", "Const Start + Varying Velocity", "Add wall"});
         dropdownBox = new JComboBox<>(new String[]{"Default singular particle", "Const Velocity + Angle", "Const Start + Varying Angle", "Const Start + Varying Velocity"});
@@ -217,6 +86,9 @@ public class ParticleSimulator extends JFrame {
         inputPanel.add(createConstantStartPointAndVaryingVelocityPanel(), "Const Start + Varying Velocity");
         //inputPanel.add(addWall(), "Add wall");
     
+        JCheckBox particleCollisionsBox = new JCheckBox("Collisions");
+        particleCollisionsBox.addActionListener(e -> engine.setParticleCollisions(particleCollisionsBox.isSelected()));
+
         JButton clearParticlesButton = new JButton("Clear Particles");
         clearParticlesButton.addActionListener(new ActionListener() {
             @Override
@@ -257,12 +129,32 @@ public class ParticleSimulator extends JFrame {
         JPanel clearPanel = new JPanel();
         clearPanel.setLayout(new GridLayout(1, 2));
         clearPanel.add(clearParticlesButton);
+        clearPanel.add(particleCollisionsBox);
         //clearPanel.add(clearWalls);
 
+        JComboBox<String> rendererBox = new JComboBox<>(ParticleRenderer.NAMES);
+        rendererBox.setSelectedItem(ParticleRenderer.DEFAULT_NAME);
+        rendererBox.addActionListener(e -> simulatorPanel.setRenderer((String) rendererBox.getSelectedItem()));
+
+        JPanel rendererPanel = new JPanel();
+        rendererPanel.add(new JLabel("Renderer"));
+        rendererPanel.add(rendererBox);
+
+        JButton saveButton = new JButton("Save");
+        saveButton.addActionListener(e -> saveScene());
+        JButton loadButton = new JButton("Load");
+        loadButton.addActionListener(e -> loadScene());
+
+        JPanel scenePanel = new JPanel();
+        scenePanel.add(saveButton);
+        scenePanel.add(loadButton);
+
         JPanel buttonPanel = new JPanel();
         buttonPanel.setLayout(new GridLayout(2, 2));
         buttonPanel.add(addPanel);
         buttonPanel.add(clearPanel);
+        buttonPanel.add(rendererPanel);
+        buttonPanel.add(scenePanel);
         
         JPanel controlPanel = new JPanel(new GridBagLayout());
         GridBagConstraints gbc = new GridBagConstraints();
@@ -291,8 +183,6 @@ public class ParticleSimulator extends JFrame {
             public void actionPerformed(ActionEvent e) {
 
                 String selectedMethod = (String) dropdownBox.getSelectedItem();
-                //Because I'm lazy
-                synchronized (particleLock) {
                 switch (selectedMethod) {
                     case "Add wall":
                         int x1 = Integer.parseInt(wX1.getText());
@@ -300,15 +190,14 @@ public class ParticleSimulator extends JFrame {
                         int y1 = Integer.parseInt(wY1.getText());
                         int y2 = Integer.parseInt(wY2.getText());
                         Wall wall = new Wall(x1, y1, x2, y2);
-                        simulatorPanel.addWall(wall);
+                        engine.addWall(wall);
                         break;
                     case "Default singular particle":
                         double X = Double.parseDouble(singleX.getText());
                         double Y = Double.parseDouble(singleY.getText());
                         double angle = Double.parseDouble(singleA.getText());
                         double velocity = Double.parseDouble(singleV.getText());
-                        Particle particle = new Particle(particleID++, X, Y, velocity, angle);
-                        simulatorPanel.addParticle(particle);
+                        engine.addParticle(X, Y, velocity, angle);
                         break;
                     case "Const Velocity + Angle":
                         int n = Integer.parseInt(numInputs.getText());
@@ -316,22 +205,21 @@ public class ParticleSimulator extends JFrame {
                         double startY = Double.parseDouble(yStartField.getText());
                         double endX = Double.parseDouble(xEndField.getText());
                         double endY = Double.parseDouble(yEndField.getText());
-                        simulatorPanel.addParticlesFixedVelocityAndAngle(n, startX, startY, endX, endY, 50, 45);
+                        engine.addParticlesFixedVelocityAndAngle(n, startX, startY, endX, endY, 50, 45);
                         break;
                     case "Const Start + Varying Angle":
                         n = Integer.parseInt(n2.getText());
                         double startAngle = Double.parseDouble(startAngleField.getText());
                         double endAngle = Double.parseDouble(endAngleField.getText());
-                        simulatorPanel.addParticlesFixedStartPointAndVelocity(n, 800, 300, startAngle, endAngle, 50);
+                        engine.addParticlesFixedStartPointAndVelocity(n, 800, 300, startAngle, endAngle, 50);
                         break;
                     case "Const Start + Varying Velocity":
                         n = Integer.parseInt(n3.getText());
                         double startVelocity = Double.parseDouble(startVelocityField.getText());
                         double endVelocity = Double.parseDouble(endVelocityField.getText());
-                        simulatorPanel.addParticlesFixedStartPointAndAngle(n, 0, 0, 45, startVelocity, endVelocity);
+                        engine.addParticlesFixedStartPointAndAngle(n, 0, 0, 45, startVelocity, endVelocity);
                         break;
                 }
-                }
             }
         });
 
@@ -346,17 +234,46 @@ public class ParticleSimulator extends JFrame {
         controlFrame.setVisible(true);
     }
 
-    private void clearParticles() {
-        synchronized (simulatorPanel) {
-            simulatorPanel.getParticles().clear();
+    // Saves or loads the scene on its own thread, the window keeps drawing meanwhile
+    private void saveScene() {
+        JFileChooser chooser = new JFileChooser();
+        if (chooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+            Path file = chooser.getSelectedFile().toPath();
+            runSceneTask(() -> SceneFile.save(engine, server, file), "Could not save " + file);
+        }
+    }
+
+    private void loadScene() {
+        JFileChooser chooser = new JFileChooser();
+        if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+            Path file = chooser.getSelectedFile().toPath();
+            runSceneTask(() -> SceneFile.load(file, engine, server), "Could not load " + file);
         }
+    }
+
+    private interface SceneTask {
+        void run() throws IOException;
+    }
+
+    private void runSceneTask(SceneTask task, String failure) {
+        new Thread(() -> {
+            try {
+                task.run();
+            } catch (IOException e) {
+                LOG.warn(e, failure);
+                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this, failure + ": " + e.getMessage(),
+                        "Scene", JOptionPane.ERROR_MESSAGE));
+            }
+        }, "scene-io").start();
+    }
+
+    private void clearParticles() {
+        engine.clearParticles();
         simulatorPanel.repaint();
     }
 
     private void clearWalls() {
-        synchronized (simulatorPanel) {
-            simulatorPanel.getWalls().clear();
-        }
+        engine.clearWalls();
         simulatorPanel.repaint();
     }
 
@@ -433,8 +350,6 @@ public class ParticleSimulator extends JFrame {
     }
 
     private class SimulatorPanel extends JPanel {
-        private List<Particle> particles;
-        private List<Wall> walls;
         private final int canvasWidth = 1280;
         private final int canvasHeight = 720;
         private BufferedImage offScreenBuffer;
@@ -454,10 +369,15 @@ public class ParticleSimulator extends JFrame {
         private int redPixelY;
         private Map<Integer, Point> clientSprite;
     
-        public SimulatorPanel(double deltaTime, double particleSize) {
+        private ParticleRenderer renderer;
+        // where the particles are, so a frame only draws the cells on screen
+        private final ParticleGrid viewGrid;
+        private long viewGridTick = -1;
+    
+        public SimulatorPanel(double particleSize) {
             this.particleSize = particleSize;
-            particles = Collections.synchronizedList(new ArrayList<Particle>());
-            walls = new ArrayList<>();
+            this.viewGrid = new ParticleGrid(engine.getWorldWidth(), engine.getWorldHeight(), VIEW_CELL_SIZE);
+            this.renderer = ParticleRenderer.create(ParticleRenderer.DEFAULT_NAME, particleSize);
             spriteX = (canvasWidth) / 2;
             spriteY = (canvasHeight) / 2;
             setFocusable(true);
@@ -466,12 +386,6 @@ public class ParticleSimulator extends JFrame {
             redPixelSprite = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
             redPixelSprite.setRGB(0, 0, Color.RED.getRGB());
             setBackground(Color.gray);
-
-			//Set up border walls
-			walls.add(new Wall(-10, -10, 1290, -10));
-			walls.add(new Wall(-10, -10, -10, 730));
-			walls.add(new Wall(1290, -10, 1290, 730));
-			walls.add(new Wall(-10, 730, 1290, 730));
         }
 
         
@@ -541,25 +455,10 @@ public class ParticleSimulator extends JFrame {
         //     repaint();
         // }
     
-        public List<Particle> getParticles() {
-            return particles;
-        }
-    
-        public void addParticle(Particle particle) {
-            particles.add(particle);
-            notifyNewParticleToClients(particle);
-        }
-    
-        public void addWall(Wall wall) {
-            walls.add(wall);
-        }
 
-        public List<Wall> getWalls() {
-            return walls;
-        }
-    
         @Override
         protected void paintComponent(Graphics g) {
+            long paintStart = System.nanoTime();
             Graphics2D offScreenGraphics = (Graphics2D) offScreenBuffer.getGraphics();
             super.paintComponent(offScreenGraphics);
 
@@ -575,8 +474,14 @@ public class ParticleSimulator extends JFrame {
             
             offScreenGraphics.scale(zoomFactor, zoomFactor);
 
-            drawParticles(offScreenGraphics, particleSize);
-            drawWalls(offScreenGraphics);
+            // one consistent tick for the whole frame, the physics keeps stepping meanwhile
+            SimulationSnapshot snapshot = engine.acquireSnapshot();
+            try {
+                drawParticles(offScreenGraphics, snapshot);
+                drawWalls(offScreenGraphics, snapshot);
+            } finally {
+                snapshot.release();
+            }
             drawSprites(offScreenGraphics);
 
             // offScreenGraphics.setColor(Color.RED);
@@ -591,10 +496,13 @@ public class ParticleSimulator extends JFrame {
             long currentTime = System.currentTimeMillis();
             if (currentTime - lastUpdateTime >= 500) {
                 fps = (int) (frames / ((currentTime - lastUpdateTime) / 1000.0));
+                tps = (int) ((loop.getTicks() - lastTicks) / ((currentTime - lastUpdateTime) / 1000.0));
                 frames = 0;
+                lastTicks = loop.getTicks();
                 lastUpdateTime = currentTime;
             }
-            g.drawString("FPS: " + fps, 10, 20);
+            g.drawString("FPS: " + fps + "  TPS: " + tps + "  overruns: " + loop.getOverruns(), 10, 20);
+            engine.getMetrics().record(SimulationMetrics.Phase.PAINT, System.nanoTime() - paintStart);
         }
 
         private void updateZoom() {
@@ -616,103 +524,55 @@ public class ParticleSimulator extends JFrame {
             zoomed = !zoomed;
             updateZoom();
         }
-    
-        private void drawParticles(Graphics g, double particleSize) {
-            for (Particle particle : particles) {
-                int x = (int) particle.getX();
-                int y = getHeight() - (int) particle.getY() - (int) particleSize;
-                g.drawOval(x, y, (int)particleSize, (int)particleSize);
+
+        // Switches how particles are drawn, on the EDT
+        public void setRenderer(String name) {
+            if (name.equals(renderer.getName())) {
+                return;
             }
+            renderer.shutdown();
+            renderer = ParticleRenderer.create(name, particleSize);
+            repaint();
         }
     
-        private void drawWalls(Graphics g) {
-            for (Wall wall : walls) {
-				Graphics2D g2 = (Graphics2D) g;
-                int x1 = (int) wall.getX1();
-                int y1 = getHeight() - (int) wall.getY1();
-                int x2 = (int) wall.getX2();
-                int y2 = getHeight() - (int) wall.getY2();
-				g2.setStroke(new BasicStroke(20));
-				g2.setPaint(Color.BLACK);
-                g2.drawLine(x1, y1, x2, y2);
+        private void drawParticles(Graphics2D g, SimulationSnapshot snapshot) {
+            // the panel repaints more often than the particles move
+            if (snapshot.getTick() != viewGridTick) {
+                viewGrid.build(snapshot.getParticles(), TickEngine.SEQUENTIAL);
+                viewGridTick = snapshot.getTick();
             }
+            renderer.setInterpolation(loop.getInterpolation());
+            renderer.drawParticles(g, offScreenBuffer, snapshot.getParticles(), viewGrid, getHeight());
+        }
+    
+        private void drawWalls(Graphics g, SimulationSnapshot snapshot) {
+            renderer.drawWalls(g, offScreenBuffer, snapshot.getWalls(), getHeight());
         }
 
         private void drawSprites(Graphics g) {
-            for (ClientHandler c : clients) {
+            for (ClientHandler c : server.getClients()) {
                 if (c.isActive()) {
                     g.setColor(c.getColor());
                     g.fillRect(c.getX(), c.getY(), 10, 10);
                 }
             }
         }
-
-        private void checkWallCollision(Particle particle, double deltaTime, double particleSize) {
-            if (particle.get_next_x(deltaTime) <= 0 || particle.get_next_x(deltaTime) + particleSize >= canvasWidth) {
-                particle.bounceHorizontal();
-            }
-            if (particle.getY() <= 0 || particle.getY() + particleSize >= canvasHeight) {
-                particle.bounceVertical();
-            }
-
-            for (Wall wall : walls) {
-                if (isParticleCollidingWithWall(particle, wall, deltaTime, particleSize)) {
-                    double wallAngle = Math.atan2(wall.getY2() - wall.getY1(), wall.getX2() - wall.getX1());
-                    particle.bounceOffWall(wallAngle);
-                }
-            }
-        }
-
-        private boolean isParticleCollidingWithWall(Particle particle, Wall wall, double deltaTime, double particleSize) {
-            double x3 = wall.getX1();
-            double y3 = wall.getY1();
-            double x4 = wall.getX2();
-            double y4 = wall.getY2();
-        
-            double x1 = particle.getX();
-            double y1 = particle.getY();
-            double x2 = particle.get_next_x(deltaTime);
-            double y2 = particle.get_next_y(deltaTime);
-        
-            double temp = (x1 - x2) * (y3 - y4) - (y1 - y2) * (x3 - x4);
-            if (temp == 0) return false;
-        
-            double t = ((x1 - x3) * (y3 - y4) - (y1 - y3) * (x3 - x4)) / temp;
-            double u = -((x1 - x2) * (y1 - y3) - (y1 - y2) * (x1 - x3)) / temp;
-        
-            boolean isColliding = t >= 0 && t <= 1 && u >= 0 && u <= 1;
-
-            return isColliding;
-        }
-
-        public void addParticlesFixedVelocityAndAngle(int n, double startX, double startY, double endX, double endY, double velocity, double angle) {
-            double deltaX = (endX - startX) / (n - 1);
-            double deltaY = (endY - startY) / (n - 1);
-            for (int i = 0; i < n; i++) {
-                double x = startX + i * deltaX;
-                double y = startY + i * deltaY;
-                addParticle(new Particle(particleID++, x, y, velocity, angle));
-            }
-        }
-
-        public void addParticlesFixedStartPointAndVelocity(int n, double startX, double startY, double startAngle, double endAngle, double velocity) {
-            double deltaAngle = (endAngle - startAngle) / (n - 1);
-            for (int i = 0; i < n; i++) {
-                double angle = startAngle + i * deltaAngle;
-                addParticle(new Particle(particleID++, startX, startY, velocity, angle));
-            }
-        }
-
-        public void addParticlesFixedStartPointAndAngle(int n, double startX, double startY, double angle, double startVelocity, double endVelocity) {
-            double deltaVelocity = (endVelocity - startVelocity) / (n - 1);
-            for (int i = 0; i < n; i++) {
-                double velocity = startVelocity + i * deltaVelocity;
-                addParticle(new Particle(particleID++, startX, startY, velocity, angle));
-            }
-        }
     }
 
     public static void main(String[] args) {
-        new ParticleSimulator();
+        SimulationEngine engine = new SimulationEngine();
+        SimulationServer server = new SimulationServer(engine);
+        SimulationLoop loop = new SimulationLoop(engine);
+        new ParticleSimulator(engine, server, loop);
+        engine.getMetrics().register();
+        engine.getMetrics().startReporting();
+        // Start a thread to handle the movement of the white pixel
+        loop.addTickListener(server::onTick);
+        loop.start();
+        try {
+            server.run();
+        } catch (IOException e) {
+            LOG.error(e, "Server stopped");
+        }
     }
 }
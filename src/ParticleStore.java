@@ -0,0 +1,352 @@
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+// Structure-of-arrays storage for every particle in the simulation.
+// Slot i of each array belongs to the same particle. Slots stay dense (0..size-1):
+// removing a particle moves the last one into its slot, so slot indices are NOT stable,
+// but ids are, and indexOf(id) finds a particle's current slot.
+//
+// The movement vector (vx, vy) is the truth: bounces reflect it directly and the angle is
+// derived from it only when someone asks, so the physics never calls sin, cos or atan2.
+// -Dparticles.legacyTrig goes back to keeping the angle in degrees and recomputing the vector
+// from it on every bounce, for comparing against runs from before; the two agree to rounding.
+public class ParticleStore {
+    private static final int INITIAL_CAPACITY = 1024;
+    public static final boolean LEGACY_TRIG = Boolean.getBoolean("particles.legacyTrig");
+
+    // Package-private so hot loops can run over the arrays directly.
+    // They are replaced when the store grows, so read them again after any add.
+    int[] ids;
+    double[] x, y;       // world coordinates
+    double[] vx, vy;     // movement vector
+    double[] velocity;   // speed
+    double[] angle;      // degrees, only kept current with LEGACY_TRIG, see getAngle()
+
+    private int size;
+    // id -> slot. Ids only ever go up, so this is a map sized by the particles stored rather
+    // than an array sized by the largest id ever handed out.
+    private final IdIndex indexById = new IdIndex();
+    // set by copyFrom(), the index is rebuilt from the ids column by the first lookup after it
+    private volatile boolean indexStale;
+
+    // only valid during copyFrom()
+    private ParticleStore copySource;
+    private final TickEngine.ChunkTask copySlots = this::copySlots;
+
+    public ParticleStore() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public ParticleStore(int capacity) {
+        capacity = Math.max(1, capacity);
+        ids = new int[capacity];
+        x = new double[capacity];
+        y = new double[capacity];
+        vx = new double[capacity];
+        vy = new double[capacity];
+        velocity = new double[capacity];
+        angle = new double[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return ids.length;
+    }
+
+    // Adds a particle and returns its slot
+    public int add(int id, double x, double y, double velocity, double angle) {
+        if (id < 0) {
+            throw new IllegalArgumentException("Particle ids must not be negative: " + id);
+        }
+        if (indexOf(id) >= 0) {
+            throw new IllegalArgumentException("Duplicate particle id: " + id);
+        }
+        ensureCapacity(size + 1);
+        int i = size++;
+        ids[i] = id;
+        this.x[i] = x;
+        this.y[i] = y;
+        this.velocity[i] = velocity;
+        this.angle[i] = angle;
+        setVector(i, angle);
+        indexById.put(id, i);
+        return i;
+    }
+
+    // Appends n particles with the ids firstId, firstId + 1, ... and the given state, taken from
+    // the start of each array. Nothing is added if any of the ids is taken.
+    public void addAll(int firstId, int n, double[] x, double[] y, double[] velocity, double[] angle) {
+        if (firstId < 0) {
+            throw new IllegalArgumentException("Particle ids must not be negative: " + firstId);
+        }
+        for (int id = firstId; id < firstId + n; id++) {
+            if (indexOf(id) >= 0) {
+                throw new IllegalArgumentException("Duplicate particle id: " + id);
+            }
+        }
+        ensureCapacity(size + n);
+        int first = size;
+        System.arraycopy(x, 0, this.x, first, n);
+        System.arraycopy(y, 0, this.y, first, n);
+        System.arraycopy(velocity, 0, this.velocity, first, n);
+        System.arraycopy(angle, 0, this.angle, first, n);
+        for (int k = 0; k < n; k++) {
+            int i = first + k;
+            ids[i] = firstId + k;
+            indexById.put(firstId + k, i);
+            setVector(i, angle[k]);
+        }
+        size += n;
+    }
+
+    // Copies the particle's current state into this store and returns the new slot
+    public int add(Particle particle) {
+        int i = add(particle.getID(), particle.getX(), particle.getY(), particle.getVelocity(), particle.getAngle());
+        vx[i] = particle.getVelocityX();
+        vy[i] = particle.getVelocityY();
+        return i;
+    }
+
+    // Removes the particle with this id, returns false if there was none
+    public boolean remove(int id) {
+        int i = indexOf(id);
+        if (i < 0) {
+            return false;
+        }
+        removeAt(i);
+        return true;
+    }
+
+    // Swap-remove: the last particle is moved into slot i
+    public void removeAt(int i) {
+        checkIndex(i);
+        ensureIndex();
+        int last = --size;
+        indexById.remove(ids[i]);
+        if (i != last) {
+            ids[i] = ids[last];
+            x[i] = x[last];
+            y[i] = y[last];
+            vx[i] = vx[last];
+            vy[i] = vy[last];
+            velocity[i] = velocity[last];
+            angle[i] = angle[last];
+            indexById.put(ids[i], i);
+        }
+    }
+
+    public void clear() {
+        indexById.clear();
+        indexStale = false;
+        size = 0;
+    }
+
+    // Makes this store an exact copy of source, reusing its arrays when they are big enough.
+    // The slots are copied in chunks on tickEngine. Only the columns up to size are copied; the
+    // id index is left to the first indexOf(), since published snapshots are mostly only iterated.
+    public void copyFrom(ParticleStore source, TickEngine tickEngine) {
+        int n = source.size;
+        ensureCapacity(n);
+        copySource = source;
+        tickEngine.forEach(n, copySlots);
+        copySource = null;
+        size = n;
+        indexStale = true;
+    }
+
+    // Snapshot stores are read from several threads at once, so the rebuild is done by one of
+    // them and published through the volatile flag
+    private void ensureIndex() {
+        if (!indexStale) {
+            return;
+        }
+        synchronized (indexById) {
+            if (indexStale) {
+                indexById.clear();
+                for (int i = 0; i < size; i++) {
+                    indexById.put(ids[i], i);
+                }
+                indexStale = false;
+            }
+        }
+    }
+
+    private void copySlots(int from, int to) {
+        ParticleStore source = copySource;
+        int n = to - from;
+        System.arraycopy(source.ids, from, ids, from, n);
+        System.arraycopy(source.x, from, x, from, n);
+        System.arraycopy(source.y, from, y, from, n);
+        System.arraycopy(source.vx, from, vx, from, n);
+        System.arraycopy(source.vy, from, vy, from, n);
+        System.arraycopy(source.velocity, from, velocity, from, n);
+        System.arraycopy(source.angle, from, angle, from, n);
+    }
+
+    // Writes the ids, then x, y, vx and vy of every particle in slot order, one buffer each,
+    // for SceneFile. Speed and angle are derived from the vector and not written.
+    public void write(IntBuffer ids, DoubleBuffer x, DoubleBuffer y, DoubleBuffer vx, DoubleBuffer vy) {
+        ids.put(this.ids, 0, size);
+        x.put(this.x, 0, size);
+        y.put(this.y, 0, size);
+        vx.put(this.vx, 0, size);
+        vy.put(this.vy, 0, size);
+    }
+
+    // Replaces everything with n particles read from buffers laid out as write() leaves them
+    public void read(int n, IntBuffer ids, DoubleBuffer x, DoubleBuffer y, DoubleBuffer vx, DoubleBuffer vy) {
+        clear();
+        ensureCapacity(n);
+        ids.get(this.ids, 0, n);
+        x.get(this.x, 0, n);
+        y.get(this.y, 0, n);
+        vx.get(this.vx, 0, n);
+        vy.get(this.vy, 0, n);
+        for (int i = 0; i < n; i++) {
+            int id = this.ids[i];
+            if (id < 0 || indexById.get(id) >= 0) {
+                // leave the store empty rather than with a broken index
+                indexById.clear();
+                throw new IllegalArgumentException(id < 0
+                        ? "Particle ids must not be negative: " + id : "Duplicate particle id: " + id);
+            }
+            indexById.put(id, i);
+            double vxi = this.vx[i], vyi = this.vy[i];
+            velocity[i] = Math.sqrt(vxi * vxi + vyi * vyi);
+            if (LEGACY_TRIG) {
+                angle[i] = Math.toDegrees(Math.atan2(vyi, vxi));
+            }
+        }
+        size = n;
+    }
+
+    public int indexOf(int id) {
+        if (id < 0) {
+            return -1;
+        }
+        ensureIndex();
+        return indexById.get(id);
+    }
+
+    // Flyweight over slot i, only valid until the next add/remove
+    public Particle get(int i) {
+        checkIndex(i);
+        return new Particle(this, i);
+    }
+
+    public int getID(int i) { return ids[i]; }
+    public double getX(int i) { return x[i]; }
+    public double getY(int i) { return y[i]; }
+    public double getVelocity(int i) { return velocity[i]; }
+    public double getAngle(int i) { return LEGACY_TRIG ? angle[i] : Math.toDegrees(Math.atan2(vy[i], vx[i])); }
+    public double getVelocityX(int i) { return vx[i]; }
+    public double getVelocityY(int i) { return vy[i]; }
+
+    public void move(int i, double deltaTime) {
+        x[i] += vx[i] * deltaTime;
+        y[i] += vy[i] * deltaTime;
+    }
+
+    public void setPosition(int i, double x, double y) {
+        this.x[i] = x;
+        this.y[i] = y;
+    }
+
+    public double getNextX(int i, double deltaTime) {
+        return x[i] + vx[i] * deltaTime;
+    }
+
+    public double getNextY(int i, double deltaTime) {
+        return y[i] + vy[i] * deltaTime;
+    }
+
+    public void bounceHorizontal(int i) {
+        if (LEGACY_TRIG) {
+            angle[i] = 180 - angle[i];
+            recalculateV(i);
+        } else {
+            vx[i] = -vx[i];
+        }
+    }
+
+    public void bounceVertical(int i) {
+        if (LEGACY_TRIG) {
+            angle[i] = -angle[i];
+            recalculateV(i);
+        } else {
+            vy[i] = -vy[i];
+        }
+    }
+
+    public void setAngle(int i, double angle) {
+        this.angle[i] = angle;
+        setVector(i, angle);
+    }
+
+    public void bounceOffWall(int i, double wallAngle) {
+        bounceOffWall(i, Math.cos(wallAngle + Math.PI / 2), Math.sin(wallAngle + Math.PI / 2));
+    }
+
+    // Reflects the movement vector about a unit wall normal, see Wall.getNormalX/Y
+    public void bounceOffWall(int i, double wallNormalX, double wallNormalY) {
+        double dotProduct = vx[i] * wallNormalX + vy[i] * wallNormalY;
+
+        double reflectX = vx[i] - 2 * dotProduct * wallNormalX;
+        double reflectY = vy[i] - 2 * dotProduct * wallNormalY;
+
+        if (LEGACY_TRIG) {
+            angle[i] = Math.toDegrees(Math.atan2(reflectY, reflectX));
+            recalculateV(i);
+        } else {
+            // a reflection keeps the speed, velocity[i] stays as it is
+            vx[i] = reflectX;
+            vy[i] = reflectY;
+        }
+    }
+
+    // Sets the movement vector directly and derives speed and angle from it
+    public void setVelocityVector(int i, double vx, double vy) {
+        this.vx[i] = vx;
+        this.vy[i] = vy;
+        if (LEGACY_TRIG) {
+            velocity[i] = Math.hypot(vx, vy);
+            angle[i] = Math.toDegrees(Math.atan2(vy, vx));
+        } else {
+            velocity[i] = Math.sqrt(vx * vx + vy * vy);
+        }
+    }
+
+    // Derives the movement vector from speed and angle
+    public void recalculateV(int i) {
+        setVector(i, getAngle(i));
+    }
+
+    private void setVector(int i, double angle) {
+        vx[i] = velocity[i] * Math.cos(Math.toRadians(angle));
+        vy[i] = velocity[i] * Math.sin(Math.toRadians(angle));
+    }
+
+    private void ensureCapacity(int needed) {
+        if (needed <= ids.length) {
+            return;
+        }
+        int capacity = Math.max(needed, ids.length + (ids.length >> 1));
+        ids = Arrays.copyOf(ids, capacity);
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        vx = Arrays.copyOf(vx, capacity);
+        vy = Arrays.copyOf(vy, capacity);
+        velocity = Arrays.copyOf(velocity, capacity);
+        angle = Arrays.copyOf(angle, capacity);
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+        }
+    }
+}
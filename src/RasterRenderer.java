@@ -0,0 +1,198 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.Arrays;
+
+// Writes particles straight into the int[] pixels of the target image instead of going through
+// Java2D for each one. The particle outline is drawn once with Java2D into a small sprite at the
+// current scale and its pixels are kept as offsets, so drawing a particle is a few array stores.
+//
+// With more than one thread the image is split into row bands and every band is drawn by one
+// thread, which only writes the rows it owns; each thread still reads every particle it is given but skips
+// those outside its band after two compares. The bands run on the renderer's own TickEngine, the
+// engine's may be busy stepping.
+//
+// Only transforms that translate and scale evenly are supported, anything else (and images whose
+// pixels are not packed ints, a clip or a translucent colour) is drawn by Java2DRenderer.
+public class RasterRenderer extends ParticleRenderer {
+    private final Java2DRenderer fallback;
+    private final TickEngine bands;
+    private final int bandCount;
+    private final TickEngine.ChunkTask drawBands = this::drawBands;
+
+    // the outline at the current size and scale: pixel offsets from the particle's top-left
+    // corner in row-major order, and their bounds
+    private int spriteSize = -1;
+    private double spriteScale;
+    private int[] spriteDx = new int[0], spriteDy = new int[0];
+    private int spriteMinX, spriteMaxX, spriteMinY, spriteMaxY;
+
+    // only valid during drawParticles()
+    private int[] pixels;
+    private int stride, width, imageHeight;
+    private int argb;
+    private double[] xs, ys, vxs, vys;
+    private int[] slots;
+    private int count, height;
+    private double scale, translateX, translateY;
+
+    public RasterRenderer(double particleSize, int threads) {
+        super(particleSize);
+        this.fallback = new Java2DRenderer(particleSize);
+        this.bandCount = Math.max(1, threads);
+        // one band per chunk and always in parallel, a band is a pass over every particle
+        this.bands = bandCount > 1 ? new TickEngine(bandCount, 1, 2) : null;
+    }
+
+    @Override
+    public String getName() {
+        return bands == null ? "raster" : "raster-parallel";
+    }
+
+    @Override
+    public void setInterpolation(double seconds) {
+        super.setInterpolation(seconds);
+        fallback.setInterpolation(seconds);
+    }
+
+    @Override
+    protected void drawSlots(Graphics2D g, BufferedImage target, ParticleStore particles, int[] slots, int count, int height) {
+        AffineTransform transform = g.getTransform();
+        int type = transform.getType() & ~AffineTransform.TYPE_TRANSLATION;
+        Color color = g.getColor();
+        if ((type != AffineTransform.TYPE_IDENTITY && type != AffineTransform.TYPE_UNIFORM_SCALE)
+                || transform.getScaleX() <= 0 || g.getClip() != null || color.getAlpha() != 255 || !hasIntPixels(target)) {
+            fallback.drawSlots(g, target, particles, slots, count, height);
+            return;
+        }
+
+        xs = particles.x;
+        ys = particles.y;
+        vxs = particles.vx;
+        vys = particles.vy;
+        this.slots = slots;
+        this.count = slots == null ? Math.min(count, Math.min(Math.min(xs.length, ys.length), Math.min(vxs.length, vys.length))) : count;
+        this.height = height;
+        scale = transform.getScaleX();
+        translateX = transform.getTranslateX();
+        translateY = transform.getTranslateY();
+        argb = color.getRGB();
+        pixels = ((DataBufferInt) target.getRaster().getDataBuffer()).getData();
+        stride = ((SinglePixelPackedSampleModel) target.getRaster().getSampleModel()).getScanlineStride();
+        width = target.getWidth();
+        imageHeight = target.getHeight();
+        prepareSprite((int) particleSize, scale);
+
+        if (bands == null) {
+            drawBand(0, imageHeight);
+        } else {
+            bands.forEach(bandCount, drawBands);
+        }
+        pixels = null;
+        xs = ys = vxs = vys = null;
+        this.slots = null;
+    }
+
+    private static boolean hasIntPixels(BufferedImage image) {
+        int type = image.getType();
+        return (type == BufferedImage.TYPE_INT_ARGB || type == BufferedImage.TYPE_INT_ARGB_PRE || type == BufferedImage.TYPE_INT_RGB)
+                && image.getRaster().getParent() == null;
+    }
+
+    private void drawBands(int from, int to) {
+        for (int band = from; band < to; band++) {
+            drawBand(imageHeight * band / bandCount, imageHeight * (band + 1) / bandCount);
+        }
+    }
+
+    // Draws the parts of every particle that fall into rows [top, bottom)
+    private void drawBand(int top, int bottom) {
+        int[] pixels = this.pixels;
+        int[] dxs = spriteDx, dys = spriteDy;
+        int n = dxs.length;
+        int size = (int) particleSize;
+        int argb = this.argb;
+        int[] slots = this.slots;
+        double lag = interpolation;
+        for (int j = 0; j < count; j++) {
+            int i = slots == null ? j : slots[j];
+            // the same corner Java2DRenderer hands to drawOval, in device pixels
+            int sx = (int) Math.floor((int) (xs[i] - vxs[i] * lag) * scale + translateX);
+            int sy = (int) Math.floor((height - (int) (ys[i] - vys[i] * lag) - size) * scale + translateY);
+            if (sy + spriteMaxY < top || sy + spriteMinY >= bottom
+                    || sx + spriteMaxX < 0 || sx + spriteMinX >= width) {
+                continue;
+            }
+            if (sy + spriteMinY >= top && sy + spriteMaxY < bottom && sx + spriteMinX >= 0 && sx + spriteMaxX < width) {
+                int origin = sy * stride + sx;
+                for (int k = 0; k < n; k++) {
+                    pixels[origin + dys[k] * stride + dxs[k]] = argb;
+                }
+            } else {
+                for (int k = 0; k < n; k++) {
+                    int px = sx + dxs[k], py = sy + dys[k];
+                    if (py >= top && py < bottom && px >= 0 && px < width) {
+                        pixels[py * stride + px] = argb;
+                    }
+                }
+            }
+        }
+    }
+
+    // Rasterizes the outline with Java2D, only when the size or the zoom changed
+    private void prepareSprite(int size, double scale) {
+        if (size == spriteSize && scale == spriteScale) {
+            return;
+        }
+        // the stroke is a user space pixel wide and straddles the outline
+        int pad = (int) Math.ceil(scale) + 1;
+        int extent = (int) Math.ceil((size + 1) * scale) + 2 * pad;
+        BufferedImage sprite = new BufferedImage(extent, extent, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = sprite.createGraphics();
+        g.translate(pad, pad);
+        g.scale(scale, scale);
+        g.setColor(Color.WHITE);
+        g.drawOval(0, 0, size, size);
+        g.dispose();
+
+        int[] dx = new int[extent * extent], dy = new int[extent * extent];
+        int n = 0;
+        int minX = 0, maxX = 0, minY = 0, maxY = 0;
+        for (int y = 0; y < extent; y++) {
+            for (int x = 0; x < extent; x++) {
+                if ((sprite.getRGB(x, y) >>> 24) != 0) {
+                    dx[n] = x - pad;
+                    dy[n] = y - pad;
+                    if (n == 0) {
+                        minX = maxX = dx[n];
+                        minY = maxY = dy[n];
+                    } else {
+                        minX = Math.min(minX, dx[n]);
+                        maxX = Math.max(maxX, dx[n]);
+                        minY = Math.min(minY, dy[n]);
+                        maxY = Math.max(maxY, dy[n]);
+                    }
+                    n++;
+                }
+            }
+        }
+        spriteDx = Arrays.copyOf(dx, n);
+        spriteDy = Arrays.copyOf(dy, n);
+        spriteMinX = minX;
+        spriteMaxX = maxX;
+        spriteMinY = minY;
+        spriteMaxY = maxY;
+        spriteSize = size;
+        spriteScale = scale;
+    }
+
+    @Override
+    public void shutdown() {
+        if (bands != null) {
+            bands.shutdown();
+        }
+    }
+}
@@ -0,0 +1,228 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+// The client's copy of the server's particles and sprites.
+//
+// The receive thread applies messages to the working state and calls publish() after each read;
+// publish() copies what drawing needs into a Frame of primitive arrays. Frames are triple
+// buffered: the receive thread fills one, the EDT draws another and the third is the latest
+// complete one, handed over with a single atomic swap. Neither side waits for the other and
+// nothing is allocated per frame once the arrays have grown to the scene.
+public class ReplicatedWorld {
+    // how long a correction takes to fade out, and how far off a particle may be before it jumps
+    static final double CORRECTION_SECONDS = 0.1;
+    static final double SNAP_DISTANCE = 50;
+
+    // Everything needed to draw one moment. Particles are dead-reckoned from their state at
+    // updateNanos: when an update disagreed with where the particle was being drawn, the
+    // difference is kept as an offset that fades out over CORRECTION_SECONDS, so the particle
+    // glides onto its new path instead of jumping.
+    public static final class Frame {
+        int particleCount;
+        int[] x = new int[16], y = new int[16], vx = new int[16], vy = new int[16];
+        long[] updateNanos = new long[16];
+        float[] offsetX = new float[16], offsetY = new float[16];
+        int spriteCount;
+        int[] spriteX = new int[4], spriteY = new int[4];
+        // simulated seconds per wall-clock second
+        double simRate = 1;
+        // set by publish(), cleared when the EDT picks the frame up
+        boolean fresh;
+
+        public int getParticleCount() { return particleCount; }
+        public int getSpriteCount() { return spriteCount; }
+        public int getSpriteX(int i) { return spriteX[i]; }
+        public int getSpriteY(int i) { return spriteY[i]; }
+
+        public double getX(int i, long now) {
+            double seconds = (now - updateNanos[i]) / 1e9;
+            return (x[i] + vx[i] * seconds * simRate) / WireProtocol.STATE_SCALE + offsetX[i] * Math.exp(-seconds / CORRECTION_SECONDS);
+        }
+
+        public double getY(int i, long now) {
+            double seconds = (now - updateNanos[i]) / 1e9;
+            return (y[i] + vy[i] * seconds * simRate) / WireProtocol.STATE_SCALE + offsetY[i] * Math.exp(-seconds / CORRECTION_SECONDS);
+        }
+
+        private void ensureParticles(int count) {
+            if (count <= x.length) {
+                return;
+            }
+            int length = Math.max(count, x.length * 2);
+            x = Arrays.copyOf(x, length);
+            y = Arrays.copyOf(y, length);
+            vx = Arrays.copyOf(vx, length);
+            vy = Arrays.copyOf(vy, length);
+            updateNanos = Arrays.copyOf(updateNanos, length);
+            offsetX = Arrays.copyOf(offsetX, length);
+            offsetY = Arrays.copyOf(offsetY, length);
+        }
+
+        private void ensureSprites(int count) {
+            if (count > spriteX.length) {
+                int length = Math.max(count, spriteX.length * 2);
+                spriteX = Arrays.copyOf(spriteX, length);
+                spriteY = Arrays.copyOf(spriteY, length);
+            }
+        }
+    }
+
+    // Working state, receive thread only. The particles live in a Frame too, so publishing is
+    // a handful of array copies.
+    private final Frame state = new Frame();
+    private int[] particleIds = new int[16];
+    private final IdIndex particleSlots = new IdIndex();
+    private int[] spriteIds = new int[4];
+    private final IdIndex spriteSlots = new IdIndex();
+    private boolean changed;
+    private double lastSnapshotTime = Double.NaN;
+    private long lastSnapshotNanos;
+
+    private Frame filling = new Frame();
+    private final AtomicReference<Frame> latest = new AtomicReference<>(new Frame());
+    private Frame drawing = new Frame(); // EDT only
+
+    public void setParticle(int id, int x, int y, int vx, int vy, long now) {
+        int i = particleSlots.get(id);
+        if (i < 0) {
+            i = state.particleCount++;
+            state.ensureParticles(state.particleCount);
+            if (i >= particleIds.length) {
+                particleIds = Arrays.copyOf(particleIds, state.x.length);
+            }
+            particleIds[i] = id;
+            particleSlots.put(id, i);
+            state.offsetX[i] = state.offsetY[i] = 0;
+        } else {
+            double offsetX = state.getX(i, now) - x / WireProtocol.STATE_SCALE;
+            double offsetY = state.getY(i, now) - y / WireProtocol.STATE_SCALE;
+            boolean snap = Math.abs(offsetX) > SNAP_DISTANCE || Math.abs(offsetY) > SNAP_DISTANCE;
+            state.offsetX[i] = snap ? 0 : (float) offsetX;
+            state.offsetY[i] = snap ? 0 : (float) offsetY;
+        }
+        state.x[i] = x;
+        state.y[i] = y;
+        state.vx[i] = vx;
+        state.vy[i] = vy;
+        state.updateNanos[i] = now;
+        changed = true;
+    }
+
+    public void applyDelta(int id, int dx, int dy, int dvx, int dvy, long now) {
+        int i = particleSlots.get(id);
+        if (i >= 0) {
+            setParticle(id, state.x[i] + dx, state.y[i] + dy, state.vx[i] + dvx, state.vy[i] + dvy, now);
+        }
+    }
+
+    public void removeParticle(int id) {
+        int i = particleSlots.get(id);
+        if (i < 0) {
+            return;
+        }
+        particleSlots.remove(id);
+        int last = --state.particleCount;
+        if (i != last) {
+            particleIds[i] = particleIds[last];
+            state.x[i] = state.x[last];
+            state.y[i] = state.y[last];
+            state.vx[i] = state.vx[last];
+            state.vy[i] = state.vy[last];
+            state.updateNanos[i] = state.updateNanos[last];
+            state.offsetX[i] = state.offsetX[last];
+            state.offsetY[i] = state.offsetY[last];
+            particleSlots.put(particleIds[i], i);
+        }
+        changed = true;
+    }
+
+    public void setSprite(int id, int x, int y) {
+        int i = spriteSlots.get(id);
+        if (i < 0) {
+            i = state.spriteCount++;
+            state.ensureSprites(state.spriteCount);
+            if (i >= spriteIds.length) {
+                spriteIds = Arrays.copyOf(spriteIds, state.spriteX.length);
+            }
+            spriteIds[i] = id;
+            spriteSlots.put(id, i);
+        }
+        state.spriteX[i] = x;
+        state.spriteY[i] = y;
+        changed = true;
+    }
+
+    public void removeSprite(int id) {
+        int i = spriteSlots.get(id);
+        if (i < 0) {
+            return;
+        }
+        spriteSlots.remove(id);
+        int last = --state.spriteCount;
+        if (i != last) {
+            spriteIds[i] = spriteIds[last];
+            state.spriteX[i] = state.spriteX[last];
+            state.spriteY[i] = state.spriteY[last];
+            spriteSlots.put(spriteIds[i], i);
+        }
+        changed = true;
+    }
+
+    // Forgets every particle and sprite, the server resends what is still there
+    public void clear() {
+        particleSlots.clear();
+        state.particleCount = 0;
+        spriteSlots.clear();
+        state.spriteCount = 0;
+        changed = true;
+    }
+
+    // The server may step faster or slower than real time and dead reckoning has to keep pace,
+    // so the rate is estimated from the simulation times of consecutive snapshots
+    public void onSnapshot(double time, long now) {
+        if (!Double.isNaN(lastSnapshotTime) && now > lastSnapshotNanos) {
+            double rate = (time - lastSnapshotTime) / ((now - lastSnapshotNanos) / 1e9);
+            // snapshots arrive with jitter, so one interval only nudges the estimate
+            state.simRate = Math.max(0.25, Math.min(4, state.simRate + (rate - state.simRate) * 0.1));
+        }
+        lastSnapshotTime = time;
+        lastSnapshotNanos = now;
+        changed = true;
+    }
+
+    // Makes the working state the latest frame, receive thread only
+    public void publish() {
+        if (!changed) {
+            return;
+        }
+        Frame frame = filling;
+        int n = state.particleCount;
+        frame.ensureParticles(n);
+        System.arraycopy(state.x, 0, frame.x, 0, n);
+        System.arraycopy(state.y, 0, frame.y, 0, n);
+        System.arraycopy(state.vx, 0, frame.vx, 0, n);
+        System.arraycopy(state.vy, 0, frame.vy, 0, n);
+        System.arraycopy(state.updateNanos, 0, frame.updateNanos, 0, n);
+        System.arraycopy(state.offsetX, 0, frame.offsetX, 0, n);
+        System.arraycopy(state.offsetY, 0, frame.offsetY, 0, n);
+        frame.particleCount = n;
+        int sprites = state.spriteCount;
+        frame.ensureSprites(sprites);
+        System.arraycopy(state.spriteX, 0, frame.spriteX, 0, sprites);
+        System.arraycopy(state.spriteY, 0, frame.spriteY, 0, sprites);
+        frame.spriteCount = sprites;
+        frame.simRate = state.simRate;
+        frame.fresh = true;
+        filling = latest.getAndSet(frame);
+        changed = false;
+    }
+
+    // The newest published frame, EDT only; it stays valid until the next call
+    public Frame acquireFrame() {
+        if (latest.get().fresh) {
+            drawing = latest.getAndSet(drawing);
+            drawing.fresh = false;
+        }
+        return drawing;
+    }
+}
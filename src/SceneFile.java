@@ -0,0 +1,261 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+// Saves and loads a whole scene: the particles, the walls, the next particle id and the client
+// sprites. One file, all fields little-endian:
+//
+//   header     int32 magic "PSIM", int32 version, int32 header size, int32 flags (0)
+//              float64 world width, float64 world height, float64 particle size
+//              int64 tick, float64 simulation time
+//              int32 next particle id, int32 particles, int32 walls, int32 sprites
+//   particles  int32 id[n], padded to 8 bytes, then float64 x[n], y[n], vx[n], vy[n]
+//   walls      float64 x1, y1, x2, y2 per wall
+//   sprites    int32 clientId, x, y per sprite
+//
+// Particles are stored column by column like ParticleStore keeps them, so each column is one
+// bulk copy between the store's array and the file. Files of MAP_THRESHOLD bytes and more are
+// read and written through a memory map, smaller ones with a plain channel read or write.
+// Readers reject newer versions and skip header fields they do not know using the header size.
+public class SceneFile {
+    public static final int MAGIC = 0x4D495350; // "PSIM" in file order
+    public static final int VERSION = 1;
+    static final int HEADER_SIZE = 72;
+    static final long MAP_THRESHOLD = 1 << 20;
+
+    private static final Log LOG = Log.get("scene");
+
+    // A scene as it is in a file, detached from any engine
+    public static final class Scene {
+        double worldWidth, worldHeight, particleSize;
+        long tick;
+        double time;
+        int nextParticleId;
+        ParticleStore particles = new ParticleStore();
+        List<Wall> walls = new ArrayList<>();
+        // (clientId, x, y) triples
+        int[] sprites = new int[0];
+
+        public int getParticleCount() { return particles.size(); }
+        public int getWallCount() { return walls.size(); }
+        public int getSpriteCount() { return sprites.length / 3; }
+        public long getTick() { return tick; }
+        public double getTime() { return time; }
+    }
+
+    // Takes a consistent copy of the engine's state and the sprites of the server's clients,
+    // server may be null
+    public static Scene capture(SimulationEngine engine, SimulationServer server) {
+        Scene scene = new Scene();
+        SimulationSnapshot snapshot = engine.snapshot();
+        scene.worldWidth = engine.getWorldWidth();
+        scene.worldHeight = engine.getWorldHeight();
+        scene.particleSize = engine.getParticleSize();
+        scene.tick = snapshot.getTick();
+        scene.time = snapshot.getTime();
+        scene.nextParticleId = engine.getNextParticleId();
+        scene.particles = snapshot.getParticles();
+        scene.walls = new ArrayList<>(snapshot.getWalls());
+        if (server != null) {
+            List<ClientHandler> clients = new ArrayList<>();
+            for (ClientHandler client : server.getClients()) {
+                if (client.isActive()) {
+                    clients.add(client);
+                }
+            }
+            scene.sprites = new int[clients.size() * 3];
+            for (int k = 0; k < clients.size(); k++) {
+                ClientHandler client = clients.get(k);
+                scene.sprites[k * 3] = client.getClientId();
+                scene.sprites[k * 3 + 1] = client.getX();
+                scene.sprites[k * 3 + 2] = client.getY();
+            }
+        }
+        return scene;
+    }
+
+    // Replaces the engine's particles and walls with the scene's and puts the sprites back. The
+    // engine applies it with its next step; the simulation clock keeps running from where it is.
+    public static void apply(Scene scene, SimulationEngine engine, SimulationServer server) {
+        if (scene.worldWidth != engine.getWorldWidth() || scene.worldHeight != engine.getWorldHeight()) {
+            LOG.warn("Scene was saved in a %.0fx%.0f world, loading it into %.0fx%.0f",
+                    scene.worldWidth, scene.worldHeight, engine.getWorldWidth(), engine.getWorldHeight());
+        }
+        engine.restore(scene.particles, scene.walls, scene.nextParticleId);
+        if (server != null) {
+            server.restoreSprites(scene.sprites);
+        }
+    }
+
+    public static void save(SimulationEngine engine, SimulationServer server, Path file) throws IOException {
+        long start = System.nanoTime();
+        Scene scene = capture(engine, server);
+        long size = write(scene, file);
+        LOG.info("Saved %d particles, %d walls and %d sprites to %s (%d bytes) in %.1fms", scene.getParticleCount(),
+                scene.getWallCount(), scene.getSpriteCount(), file, size, (System.nanoTime() - start) / 1e6);
+    }
+
+    public static Scene load(Path file, SimulationEngine engine, SimulationServer server) throws IOException {
+        long start = System.nanoTime();
+        Scene scene = read(file);
+        apply(scene, engine, server);
+        LOG.info("Loaded %d particles, %d walls and %d sprites from %s in %.1fms", scene.getParticleCount(),
+                scene.getWallCount(), scene.getSpriteCount(), file, (System.nanoTime() - start) / 1e6);
+        return scene;
+    }
+
+    // Writes the scene and returns the file's size in bytes
+    public static long write(Scene scene, Path file) throws IOException {
+        int n = scene.particles.size();
+        long size = HEADER_SIZE + idBytes(n) + 32L * n + 32L * scene.walls.size() + 4L * scene.sprites.length;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Scene of " + size + " bytes is too large for one file");
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            boolean mapped = size >= MAP_THRESHOLD;
+            ByteBuffer out = mapped ? channel.map(FileChannel.MapMode.READ_WRITE, 0, size) : ByteBuffer.allocate((int) size);
+            out.order(ByteOrder.LITTLE_ENDIAN);
+            encode(scene, out);
+            if (!mapped) {
+                out.flip();
+                while (out.hasRemaining()) {
+                    channel.write(out);
+                }
+            }
+        }
+        return size;
+    }
+
+    public static Scene read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException(file + " is not a scene file (" + size + " bytes)");
+            }
+            ByteBuffer in;
+            if (size >= MAP_THRESHOLD) {
+                in = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                in = ByteBuffer.allocate((int) size);
+                while (in.hasRemaining() && channel.read(in) >= 0) {
+                    // keep reading until the buffer is full
+                }
+                in.flip();
+            }
+            in.order(ByteOrder.LITTLE_ENDIAN);
+            return decode(in, file);
+        }
+    }
+
+    private static void encode(Scene scene, ByteBuffer out) {
+        int n = scene.particles.size();
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+        out.putInt(HEADER_SIZE);
+        out.putInt(0);
+        out.putDouble(scene.worldWidth);
+        out.putDouble(scene.worldHeight);
+        out.putDouble(scene.particleSize);
+        out.putLong(scene.tick);
+        out.putDouble(scene.time);
+        out.putInt(scene.nextParticleId);
+        out.putInt(n);
+        out.putInt(scene.walls.size());
+        out.putInt(scene.sprites.length / 3);
+
+        int ids = out.position();
+        int columns = ids + idBytes(n);
+        scene.particles.write(slice(out, ids, 4L * n).asIntBuffer(),
+                slice(out, columns, 8L * n).asDoubleBuffer(),
+                slice(out, columns + 8L * n, 8L * n).asDoubleBuffer(),
+                slice(out, columns + 16L * n, 8L * n).asDoubleBuffer(),
+                slice(out, columns + 24L * n, 8L * n).asDoubleBuffer());
+        out.position(columns + 32 * n);
+
+        for (Wall wall : scene.walls) {
+            out.putDouble(wall.getX1());
+            out.putDouble(wall.getY1());
+            out.putDouble(wall.getX2());
+            out.putDouble(wall.getY2());
+        }
+        for (int value : scene.sprites) {
+            out.putInt(value);
+        }
+    }
+
+    private static Scene decode(ByteBuffer in, Path file) throws IOException {
+        if (in.getInt() != MAGIC) {
+            throw new IOException(file + " is not a scene file");
+        }
+        int version = in.getInt();
+        if (version > VERSION) {
+            throw new IOException(file + " is scene version " + version + ", this build reads up to " + VERSION);
+        }
+        int headerSize = in.getInt();
+        in.getInt(); // flags
+        Scene scene = new Scene();
+        scene.worldWidth = in.getDouble();
+        scene.worldHeight = in.getDouble();
+        scene.particleSize = in.getDouble();
+        scene.tick = in.getLong();
+        scene.time = in.getDouble();
+        scene.nextParticleId = in.getInt();
+        int n = in.getInt();
+        int wallCount = in.getInt();
+        int spriteCount = in.getInt();
+        long expected = (long) headerSize + idBytes(n) + 32L * n + 32L * wallCount + 12L * spriteCount;
+        if (headerSize < HEADER_SIZE || n < 0 || wallCount < 0 || spriteCount < 0 || expected != in.limit()) {
+            throw new IOException(file + " is truncated or corrupt");
+        }
+
+        int ids = headerSize;
+        int columns = ids + idBytes(n);
+        try {
+            scene.particles.read(n, slice(in, ids, 4L * n).asIntBuffer(),
+                    slice(in, columns, 8L * n).asDoubleBuffer(),
+                    slice(in, columns + 8L * n, 8L * n).asDoubleBuffer(),
+                    slice(in, columns + 16L * n, 8L * n).asDoubleBuffer(),
+                    slice(in, columns + 24L * n, 8L * n).asDoubleBuffer());
+        } catch (IllegalArgumentException e) {
+            throw new IOException(file + " is corrupt: " + e.getMessage());
+        }
+        if (scene.nextParticleId <= maxId(scene.particles)) {
+            throw new IOException(file + " is corrupt: next particle id " + scene.nextParticleId + " is in use");
+        }
+        in.position(columns + 32 * n);
+
+        for (int k = 0; k < wallCount; k++) {
+            scene.walls.add(new Wall(in.getDouble(), in.getDouble(), in.getDouble(), in.getDouble()));
+        }
+        scene.sprites = new int[spriteCount * 3];
+        for (int k = 0; k < scene.sprites.length; k++) {
+            scene.sprites[k] = in.getInt();
+        }
+        return scene;
+    }
+
+    // The ids column is padded so the float64 columns after it stay 8-byte aligned
+    private static int idBytes(int n) {
+        return (4 * n + 7) & ~7;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, long offset, long length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit((int) (offset + length)).position((int) offset);
+        return slice.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static int maxId(ParticleStore particles) {
+        int max = -1;
+        for (int i = 0; i < particles.size(); i++) {
+            max = Math.max(max, particles.getID(i));
+        }
+        return max;
+    }
+}
@@ -0,0 +1,376 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+// Micro-benchmarks for the hot paths: the physics tick, wall collision, particle drawing and
+// state sync encoding. Every benchmark is warmed up first, then reports ops/s and the bytes
+// allocated per op (summed over all threads, so the tick workers are included).
+//
+//   java -cp src SimulationBenchmark [--quick] [--filter text] [--out file] [--baseline file] [--threshold 0.1]
+//
+// --out writes the results in the format --baseline reads; with a baseline every benchmark that
+// got slower or allocates more than the threshold allows is reported and the exit code is 1.
+public class SimulationBenchmark {
+
+    private interface Operation {
+        void run() throws Exception;
+    }
+
+    private static final class Result {
+        final String name;
+        final double opsPerSecond;
+        final double bytesPerOp;
+
+        Result(String name, double opsPerSecond, double bytesPerOp) {
+            this.name = name;
+            this.opsPerSecond = opsPerSecond;
+            this.bytesPerOp = bytesPerOp;
+        }
+    }
+
+    private static final double DELTA_TIME = 0.016;
+
+    private final long warmupMillis;
+    private final long measureMillis;
+    private final String filter;
+    private final List<Result> results = new ArrayList<>();
+    private final com.sun.management.ThreadMXBean threads;
+
+    private SimulationBenchmark(long warmupMillis, long measureMillis, String filter) {
+        this.warmupMillis = warmupMillis;
+        this.measureMillis = measureMillis;
+        this.filter = filter;
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        this.threads = bean instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean) bean : null;
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean quick = false;
+        String filter = null;
+        String out = null;
+        String baseline = null;
+        double threshold = 0.1;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--quick": quick = true; break;
+                case "--filter": filter = args[++i]; break;
+                case "--out": out = args[++i]; break;
+                case "--baseline": baseline = args[++i]; break;
+                case "--threshold": threshold = Double.parseDouble(args[++i]); break;
+                default:
+                    System.err.println("Unknown argument: " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        SimulationBenchmark benchmark = quick ? new SimulationBenchmark(200, 500, filter) : new SimulationBenchmark(2000, 5000, filter);
+        benchmark.runAll();
+
+        if (out != null) {
+            benchmark.write(out);
+        }
+        if (baseline != null && benchmark.compare(baseline, threshold) > 0) {
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    private void runAll() throws Exception {
+        System.out.printf("%-28s %14s %12s %14s%n", "benchmark", "ops/s", "ms/op", "bytes/op");
+        for (int particles : new int[] {1_000, 100_000, 1_000_000}) {
+            benchmarkTick(particles);
+        }
+        for (int walls : new int[] {0, 100, 1_000, 5_000}) {
+            benchmarkWallCollision(100_000, walls);
+        }
+        benchmarkBounce(1_000_000);
+        for (int particles : new int[] {1_000, 100_000}) {
+            benchmarkDrawParticles("java2d", particles);
+        }
+        for (int particles : new int[] {100_000, 1_000_000}) {
+            benchmarkDrawParticles("raster", particles);
+            benchmarkDrawParticles("raster-parallel", particles);
+        }
+        benchmarkDrawView(1_000_000, false);
+        benchmarkDrawView(1_000_000, true);
+        for (int particles : new int[] {1_000, 100_000}) {
+            benchmarkStateSync(particles, false, false);
+            benchmarkStateSync(particles, true, false);
+        }
+        benchmarkStateSync(1_000_000, true, true);
+    }
+
+    private void benchmarkTick(int particles) throws Exception {
+        String name = "tick/" + particles;
+        if (!selected(name)) {
+            return;
+        }
+        SimulationEngine engine = new SimulationEngine();
+        addRandomParticles(engine, particles, new Random(42));
+        measure(name, () -> engine.step(DELTA_TIME));
+        engine.shutdown();
+    }
+
+    private void benchmarkWallCollision(int particles, int walls) throws Exception {
+        String name = "wallCollision/" + walls;
+        if (!selected(name)) {
+            return;
+        }
+        Random random = new Random(7);
+        SimulationEngine engine = new SimulationEngine();
+        for (int i = 0; i < walls; i++) {
+            double x = random.nextDouble() * engine.getWorldWidth();
+            double y = random.nextDouble() * engine.getWorldHeight();
+            double length = 20 + random.nextDouble() * 60;
+            double angle = random.nextDouble() * Math.PI;
+            engine.addWall(new Wall(x, y, x + Math.cos(angle) * length, y + Math.sin(angle) * length));
+        }
+        addRandomParticles(engine, particles, random);
+        measure(name, () -> engine.step(DELTA_TIME));
+        engine.shutdown();
+    }
+
+    // Every particle bounces off an edge, an edge and a slanted wall: the cost of the velocity
+    // updates alone, compare with -Dparticles.legacyTrig
+    private void benchmarkBounce(int particles) throws Exception {
+        String name = "bounce/" + particles;
+        if (!selected(name)) {
+            return;
+        }
+        ParticleStore store = new ParticleStore(particles);
+        Random random = new Random(5);
+        for (int i = 0; i < particles; i++) {
+            store.add(i, random.nextDouble() * 1000, random.nextDouble() * 1000, 20 + random.nextDouble() * 200, random.nextDouble() * 360);
+        }
+        Wall wall = new Wall(0, 0, 3, 4);
+        double normalX = wall.getNormalX(), normalY = wall.getNormalY();
+        measure(name, () -> {
+            for (int i = 0; i < particles; i++) {
+                store.bounceHorizontal(i);
+                store.bounceVertical(i);
+                store.bounceOffWall(i, normalX, normalY);
+            }
+        });
+    }
+
+    // java2d keeps its old name so baselines from before the raster renderers still compare
+    private void benchmarkDrawParticles(String renderer, int particles) throws Exception {
+        String name = "drawParticles/" + (renderer.equals("java2d") ? "" : renderer + "/") + particles;
+        if (!selected(name)) {
+            return;
+        }
+        SimulationEngine engine = new SimulationEngine();
+        addRandomParticles(engine, particles, new Random(11));
+        ParticleRenderer drawer = ParticleRenderer.create(renderer, engine.getParticleSize());
+        BufferedImage image = new BufferedImage(SimulationEngine.WORLD_WIDTH, SimulationEngine.WORLD_HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.BLACK);
+        measure(name, () -> drawer.drawParticles(g, image, engine.getParticles(), image.getHeight()));
+        g.dispose();
+        drawer.shutdown();
+        engine.shutdown();
+    }
+
+    // A frame the way SimulatorPanel draws one: the grid is rebuilt, then only the visible cells
+    // are drawn. tiles is the whole world at 1:1, where the dense cells become tiles; zoomed is
+    // adventure mode around the centre of the world.
+    private void benchmarkDrawView(int particles, boolean zoomed) throws Exception {
+        String name = "drawParticles/" + (zoomed ? "zoomed/" : "tiles/") + particles;
+        if (!selected(name)) {
+            return;
+        }
+        SimulationEngine engine = new SimulationEngine();
+        addRandomParticles(engine, particles, new Random(11));
+        ParticleRenderer drawer = ParticleRenderer.create("raster", engine.getParticleSize());
+        ParticleGrid grid = new ParticleGrid(engine.getWorldWidth(), engine.getWorldHeight(), 32);
+        BufferedImage image = new BufferedImage(SimulationEngine.WORLD_WIDTH, SimulationEngine.WORLD_HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.BLACK);
+        if (zoomed) {
+            double zoom = Math.min(image.getWidth() / 33, image.getHeight() / 19);
+            g.translate(image.getWidth() / 2.0, image.getHeight() / 2.0);
+            g.scale(zoom, zoom);
+            g.translate(-image.getWidth() / 2.0, -image.getHeight() / 2.0);
+        }
+        measure(name, () -> {
+            grid.build(engine.getParticles(), engine.getTickEngine());
+            drawer.drawParticles(g, image, engine.getParticles(), grid, image.getHeight());
+        });
+        g.dispose();
+        drawer.shutdown();
+        engine.shutdown();
+    }
+
+    // full: every op sends all particles to a client that has none of them.
+    // delta: the client alternates between two states one tick apart, so every particle moved.
+    // The view covers the whole world, unless aoi is set and it is the default client view.
+    private void benchmarkStateSync(int particles, boolean delta, boolean aoi) throws Exception {
+        String name = "sync/" + (aoi ? "aoi/" : delta ? "delta/" : "full/") + particles;
+        if (!selected(name)) {
+            return;
+        }
+        Random random = new Random(13);
+        ParticleStore before = new ParticleStore();
+        ParticleStore after = new ParticleStore();
+        for (int id = 1; id <= particles; id++) {
+            double x = random.nextDouble() * SimulationEngine.WORLD_WIDTH;
+            double y = random.nextDouble() * SimulationEngine.WORLD_HEIGHT;
+            double velocity = 20 + random.nextDouble() * 200;
+            double angle = random.nextDouble() * 360;
+            before.add(id, x, y, velocity, angle);
+            after.move(after.add(id, x, y, velocity, angle), SimulationLoop.DEFAULT_DELTA_TIME);
+        }
+        WireProtocol protocol = WireProtocol.create("binary");
+        OutboundBatcher batcher = new OutboundBatcher();
+        batcher.setOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+        double width = SimulationEngine.WORLD_WIDTH, height = SimulationEngine.WORLD_HEIGHT;
+        ParticleGrid beforeGrid = new ParticleGrid(width, height, 32);
+        ParticleGrid afterGrid = new ParticleGrid(width, height, 32);
+        TickEngine tickEngine = new TickEngine(1);
+        beforeGrid.build(before, tickEngine);
+        afterGrid.build(after, tickEngine);
+        tickEngine.shutdown();
+        ClientView view = new ClientView(SimulationEngine.DEFAULT_PARTICLE_SIZE);
+        if (!aoi) {
+            view.setViewSize(width + 100, height + 100, 0);
+        }
+        boolean[] odd = {false};
+        measure(name, () -> {
+            if (!delta) {
+                view.reset();
+            }
+            if (odd[0]) {
+                view.writeSnapshot(after, afterGrid, 0, width / 2, height / 2, protocol, batcher);
+            } else {
+                view.writeSnapshot(before, beforeGrid, 0, width / 2, height / 2, protocol, batcher);
+            }
+            view.acknowledge(view.getSeq());
+            batcher.flush();
+            odd[0] = !odd[0];
+        });
+    }
+
+    private static void addRandomParticles(SimulationEngine engine, int count, Random random) {
+        double size = engine.getParticleSize();
+        double[] x = new double[count], y = new double[count], velocity = new double[count], angle = new double[count];
+        for (int i = 0; i < count; i++) {
+            x[i] = random.nextDouble() * (engine.getWorldWidth() - size);
+            y[i] = random.nextDouble() * (engine.getWorldHeight() - size);
+            velocity[i] = 20 + random.nextDouble() * 200;
+            angle[i] = random.nextDouble() * 360;
+        }
+        engine.addParticles(x, y, velocity, angle);
+        engine.applyCommands();
+    }
+
+    private boolean selected(String name) {
+        return filter == null || name.contains(filter);
+    }
+
+    private void measure(String name, Operation operation) throws Exception {
+        runFor(operation, warmupMillis);
+
+        long bytesBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long ops = runFor(operation, measureMillis);
+        long elapsed = System.nanoTime() - start;
+        long bytesAfter = allocatedBytes();
+
+        double opsPerSecond = ops / (elapsed / 1e9);
+        double bytesPerOp = bytesBefore < 0 ? -1 : (double) (bytesAfter - bytesBefore) / ops;
+        results.add(new Result(name, opsPerSecond, bytesPerOp));
+        System.out.printf("%-28s %14.1f %12.4f %14.1f%n", name, opsPerSecond, 1000.0 / opsPerSecond, bytesPerOp);
+    }
+
+    // Runs the operation in growing batches so the clock is not read on every op
+    private static long runFor(Operation operation, long millis) throws Exception {
+        long deadline = System.nanoTime() + millis * 1_000_000L;
+        long ops = 0;
+        int batch = 1;
+        while (System.nanoTime() < deadline) {
+            for (int i = 0; i < batch; i++) {
+                operation.run();
+            }
+            ops += batch;
+            if (batch < 1024) {
+                batch <<= 1;
+            }
+        }
+        return ops;
+    }
+
+    private long allocatedBytes() {
+        if (threads == null || !threads.isThreadAllocatedMemorySupported()) {
+            return -1;
+        }
+        long total = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+
+    private void write(String file) throws IOException {
+        try (PrintWriter writer = new PrintWriter(file)) {
+            for (Result result : results) {
+                writer.printf("%s %.3f %.3f%n", result.name, result.opsPerSecond, result.bytesPerOp);
+            }
+        }
+    }
+
+    // Returns the number of regressions against the baseline file
+    private int compare(String file, double threshold) throws IOException {
+        Map<String, double[]> baseline = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.trim().split("\\s+");
+                if (parts.length == 3) {
+                    baseline.put(parts[0], new double[] {Double.parseDouble(parts[1]), Double.parseDouble(parts[2])});
+                }
+            }
+        }
+
+        int regressions = 0;
+        for (Result result : results) {
+            double[] base = baseline.get(result.name);
+            if (base == null) {
+                continue;
+            }
+            if (result.opsPerSecond < base[0] * (1 - threshold)) {
+                System.out.printf("REGRESSION %s: %.1f ops/s, baseline %.1f%n", result.name, result.opsPerSecond, base[0]);
+                regressions++;
+            }
+            // a few bytes of noise per op are expected from the measurement itself
+            if (base[1] >= 0 && result.bytesPerOp > base[1] * (1 + threshold) + 64) {
+                System.out.printf("REGRESSION %s: %.1f bytes/op, baseline %.1f%n", result.name, result.bytesPerOp, base[1]);
+                regressions++;
+            }
+        }
+        if (regressions == 0) {
+            System.out.println("No regressions against " + file);
+        }
+        return regressions;
+    }
+}
@@ -0,0 +1,461 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// The simulation itself: particles, walls and the physics step, with no Swing/AWT dependency.
+// Adding and clearing particles and walls only queues the change, from any thread without
+// locking; the next step applies everything queued before it moves anything, bulk spawns as one
+// append. Code that reads getParticles() directly must hold getLock() while it does.
+//
+// Readers that only look at the state (drawing, syncing clients) should use acquireSnapshot()
+// instead: once anyone has asked for one, every step ends by copying the particles into a
+// pooled SimulationSnapshot, and readers get the latest without ever waiting for a step.
+public class SimulationEngine {
+    private static final Log LOG = Log.get("engine");
+
+    public static final int WORLD_WIDTH = 1280;
+    public static final int WORLD_HEIGHT = 720;
+    public static final double DEFAULT_PARTICLE_SIZE = 10;
+    // particles moving further than this in one step get sub-steps, up to MAX_SUBSTEPS bounces
+    public static final double SUBSTEP_DISTANCE = Double.parseDouble(System.getProperty("particles.substepDistance", "5"));
+    public static final int MAX_SUBSTEPS = Integer.getInteger("particles.maxSubsteps", 8);
+    // how far a particle is kept off a wall it bounced off
+    private static final double WALL_SKIN = 1e-4;
+    private static final int NO_HIT = 0, VERTICAL_EDGE = 1, HORIZONTAL_EDGE = 2, WALL = 3;
+
+    private final Object lock = new Object();
+    private final double worldWidth, worldHeight;
+    private final double particleSize;
+    private final ParticleStore particles = new ParticleStore();
+    private final List<Wall> walls = new ArrayList<>();
+    private final WallGrid wallGrid;
+    private final ThreadLocal<WallGrid.Query> wallQueries;
+    private final TickEngine tickEngine;
+    private final ParticleCollider particleCollider;
+    private final SimulationMetrics metrics = new SimulationMetrics(this);
+    private volatile boolean particleCollisions = false;
+    private final AtomicInteger nextParticleId = new AtomicInteger(1);
+    // changes from any thread, applied at the start of the next step so the caller never waits
+    // for one and the step never waits for the caller
+    private final Queue<Runnable> commands = new ConcurrentLinkedQueue<>();
+    private boolean wallsChanged;
+    private long tick = 0;
+    private double time = 0; // simulated seconds, the sum of every step's deltaTime
+
+    // published snapshots: latest and the pool are guarded by publishLock, which is only held
+    // to swap references, never while copying
+    private final Object publishLock = new Object();
+    private final ArrayDeque<SimulationSnapshot> snapshotPool = new ArrayDeque<>();
+    private SimulationSnapshot latest;
+    private volatile boolean publishing;
+    // an unmodifiable copy of walls, replaced when they change so snapshots can share it
+    private List<Wall> publishedWalls = Collections.emptyList();
+
+    // only valid during step()
+    private double stepDeltaTime;
+    private final TickEngine.ChunkTask particleStep = this::stepChunk;
+
+    public SimulationEngine() {
+        this(new TickEngine());
+    }
+
+    public SimulationEngine(TickEngine tickEngine) {
+        this(tickEngine, WORLD_WIDTH, WORLD_HEIGHT, DEFAULT_PARTICLE_SIZE);
+    }
+
+    public SimulationEngine(TickEngine tickEngine, double worldWidth, double worldHeight, double particleSize) {
+        this.tickEngine = tickEngine;
+        this.worldWidth = worldWidth;
+        this.worldHeight = worldHeight;
+        this.particleSize = particleSize;
+        this.wallGrid = new WallGrid(worldWidth, worldHeight);
+        this.wallQueries = ThreadLocal.withInitial(wallGrid::newQuery);
+        this.particleCollider = new ParticleCollider(worldWidth, worldHeight, particleSize);
+
+        //Set up border walls
+        addWall(new Wall(-10, -10, worldWidth + 10, -10));
+        addWall(new Wall(-10, -10, -10, worldHeight + 10));
+        addWall(new Wall(worldWidth + 10, -10, worldWidth + 10, worldHeight + 10));
+        addWall(new Wall(-10, worldHeight + 10, worldWidth + 10, worldHeight + 10));
+    }
+
+    public Object getLock() { return lock; }
+    public double getWorldWidth() { return worldWidth; }
+    public double getWorldHeight() { return worldHeight; }
+    public double getParticleSize() { return particleSize; }
+    public TickEngine getTickEngine() { return tickEngine; }
+    public SimulationMetrics getMetrics() { return metrics; }
+
+    // The live store, only touch it while holding getLock()
+    public ParticleStore getParticles() {
+        return particles;
+    }
+
+    public long getTick() {
+        synchronized (lock) {
+            return tick;
+        }
+    }
+
+    public double getTime() {
+        synchronized (lock) {
+            return time;
+        }
+    }
+
+    public int getParticleCount() {
+        synchronized (lock) {
+            return particles.size();
+        }
+    }
+
+    public boolean isParticleCollisions() {
+        return particleCollisions;
+    }
+
+    public void setParticleCollisions(boolean particleCollisions) {
+        this.particleCollisions = particleCollisions;
+    }
+
+    // Advances the simulation by deltaTime seconds
+    public void step(double deltaTime) {
+        long waitStart = System.nanoTime();
+        synchronized (lock) {
+            long start = lockAcquired(waitStart);
+            drainCommands();
+            long phaseStart = System.nanoTime();
+            metrics.record(SimulationMetrics.Phase.COMMANDS, phaseStart - start);
+            stepDeltaTime = deltaTime;
+            tickEngine.forEach(particles.size(), particleStep);
+            phaseStart = recordPhase(SimulationMetrics.Phase.MOVE, phaseStart);
+            if (particleCollisions) {
+                particleCollider.resolve(particles, tickEngine);
+                phaseStart = recordPhase(SimulationMetrics.Phase.COLLIDE, phaseStart);
+            }
+            tick++;
+            time += deltaTime;
+            if (publishing) {
+                publish(tickEngine);
+                recordPhase(SimulationMetrics.Phase.PUBLISH, phaseStart);
+            }
+            metrics.record(SimulationMetrics.Phase.STEP, System.nanoTime() - start);
+        }
+    }
+
+    // Records how long the caller waited for the lock since waitStart and returns the time now
+    private long lockAcquired(long waitStart) {
+        long now = System.nanoTime();
+        metrics.record(SimulationMetrics.Phase.LOCK_WAIT, now - waitStart);
+        return now;
+    }
+
+    // Records phase as having run from start until now and returns the time now
+    private long recordPhase(SimulationMetrics.Phase phase, long start) {
+        long now = System.nanoTime();
+        metrics.record(phase, now - start);
+        return now;
+    }
+
+    // The state at the end of the last step, to read without the engine lock. The caller must
+    // release() it when done; holding it only keeps that copy from being reused.
+    public SimulationSnapshot acquireSnapshot() {
+        if (!publishing) {
+            long waitStart = System.nanoTime();
+            synchronized (lock) {
+                lockAcquired(waitStart);
+                if (!publishing) {
+                    drainCommands();
+                    // the loop thread may be using the engine's TickEngine outside the lock
+                    publish(TickEngine.SEQUENTIAL);
+                    publishing = true;
+                }
+            }
+        }
+        synchronized (publishLock) {
+            latest.retain();
+            return latest;
+        }
+    }
+
+    // Copies the current state into a free snapshot and makes it the latest, with the lock held
+    private void publish(TickEngine copyEngine) {
+        SimulationSnapshot next;
+        synchronized (publishLock) {
+            next = snapshotPool.poll();
+        }
+        if (next == null) {
+            next = new SimulationSnapshot(this);
+        }
+        next.copyFrom(tick, time, particles, publishedWalls, copyEngine);
+        // the engine's own reference, dropped when a newer snapshot replaces it
+        next.retain();
+        SimulationSnapshot previous;
+        synchronized (publishLock) {
+            previous = latest;
+            latest = next;
+        }
+        if (previous != null) {
+            previous.release();
+        }
+    }
+
+    // Called by a pooled snapshot once its last reader released it
+    void recycle(SimulationSnapshot snapshot) {
+        synchronized (publishLock) {
+            snapshotPool.push(snapshot);
+        }
+    }
+
+    private void stepChunk(int from, int to) {
+        WallGrid.Query wallQuery = wallQueries.get();
+        for (int i = from; i < to; i++) {
+            advance(i, stepDeltaTime, wallQuery);
+        }
+    }
+
+    // Moves particle i for deltaTime and bounces it off the world's edges and the walls at the
+    // moment it reaches them, so it never ends up past one however large the step. A particle
+    // that moves more than SUBSTEP_DISTANCE is advanced in sub-steps, one per bounce, up to
+    // MAX_SUBSTEPS; a slower one gets two, so it bounces once and still travels the rest of the
+    // step. Only a particle that bounces more often than that in one step (into a corner) waits
+    // the remainder out at the contact point.
+    private void advance(int i, double deltaTime, WallGrid.Query wallQuery) {
+        double x = particles.getX(i), y = particles.getY(i);
+        double x2 = particles.getNextX(i, deltaTime), y2 = particles.getNextY(i, deltaTime);
+        // most particles hit nothing, they are done after one sweep
+        if (x2 > 0 && x2 < worldWidth - particleSize && y2 > 0 && y2 < worldHeight - particleSize
+                && wallQuery.firstHit(x, y, x2, y2, null) == null) {
+            particles.setPosition(i, x2, y2);
+            return;
+        }
+        bounce(i, deltaTime, wallQuery);
+    }
+
+    // The rest of advance(), kept apart so the common path stays small enough to inline
+    private void bounce(int i, double deltaTime, WallGrid.Query wallQuery) {
+        double maxX = worldWidth - particleSize, maxY = worldHeight - particleSize;
+        double x = particles.getX(i), y = particles.getY(i);
+        double vx = particles.getVelocityX(i), vy = particles.getVelocityY(i);
+        int substeps = (Math.abs(vx) + Math.abs(vy)) * deltaTime > SUBSTEP_DISTANCE ? MAX_SUBSTEPS : Math.min(2, MAX_SUBSTEPS);
+        double remaining = deltaTime;
+        Wall last = null;
+        for (int substep = 0; substep < substeps && remaining > 0; substep++) {
+            double x2 = x + vx * remaining, y2 = y + vy * remaining;
+            // the earliest of the edges and the walls; a particle on or past an edge and still
+            // moving out turns at once
+            double t = 1;
+            int hit = NO_HIT;
+            if (vx < 0 && x2 <= 0) {
+                t = x <= 0 ? 0 : x / (x - x2);
+                hit = VERTICAL_EDGE;
+            } else if (vx > 0 && x2 >= maxX) {
+                t = x >= maxX ? 0 : (maxX - x) / (x2 - x);
+                hit = VERTICAL_EDGE;
+            }
+            if (vy < 0 && y2 <= 0) {
+                double ty = y <= 0 ? 0 : y / (y - y2);
+                if (ty < t) {
+                    t = ty;
+                    hit = HORIZONTAL_EDGE;
+                }
+            } else if (vy > 0 && y2 >= maxY) {
+                double ty = y >= maxY ? 0 : (maxY - y) / (y2 - y);
+                if (ty < t) {
+                    t = ty;
+                    hit = HORIZONTAL_EDGE;
+                }
+            }
+            // only the walls in the grid cells the segment crosses
+            Wall wall = wallQuery.firstHit(x, y, x2, y2, last);
+            if (wall != null && wallQuery.getHitTime() < t) {
+                t = wallQuery.getHitTime();
+                hit = WALL;
+            }
+
+            if (hit == NO_HIT) {
+                x = x2;
+                y = y2;
+                remaining = 0;
+                break;
+            }
+            x += (x2 - x) * t;
+            y += (y2 - y) * t;
+            remaining *= 1 - t;
+            last = null;
+            if (hit == VERTICAL_EDGE) {
+                particles.bounceHorizontal(i);
+            } else if (hit == HORIZONTAL_EDGE) {
+                particles.bounceVertical(i);
+            } else {
+                // back off along the way the particle came, which crossed nothing, so the next
+                // sweep starts clear of this wall and of any wall meeting it at the contact
+                double back = WALL_SKIN / Math.hypot(vx, vy);
+                x -= vx * back;
+                y -= vy * back;
+                particles.bounceOffWall(i, wall.getNormalX(), wall.getNormalY());
+                last = wall;
+            }
+            vx = particles.getVelocityX(i);
+            vy = particles.getVelocityY(i);
+        }
+        particles.setPosition(i, x, y);
+    }
+
+    // Queues one particle and returns the id it will have
+    public int addParticle(double x, double y, double velocity, double angle) {
+        int id = nextParticleId.getAndIncrement();
+        commands.add(() -> particles.add(id, x, y, velocity, angle));
+        return id;
+    }
+
+    public void addParticle(Particle particle) {
+        if (particle.getID() < 0) {
+            throw new IllegalArgumentException("Particle ids must not be negative: " + particle.getID());
+        }
+        nextParticleId.accumulateAndGet(particle.getID() + 1, Math::max);
+        // the flyweight may point into a store that changes before the command runs
+        Particle copy = new Particle(particle.getID(), particle.getX(), particle.getY(), particle.getVelocity(), particle.getAngle());
+        commands.add(() -> particles.add(copy));
+    }
+
+    // Queues particles (x[i], y[i], velocity[i], angle[i]) to be appended in one go and returns
+    // the id of the first, the others follow consecutively. The arrays must not change after.
+    public int addParticles(double[] x, double[] y, double[] velocity, double[] angle) {
+        int n = x.length;
+        int firstId = nextParticleId.getAndAdd(n);
+        commands.add(() -> particles.addAll(firstId, n, x, y, velocity, angle));
+        return firstId;
+    }
+
+    public void addParticlesFixedVelocityAndAngle(int n, double startX, double startY, double endX, double endY, double velocity, double angle) {
+        double deltaX = (endX - startX) / (n - 1);
+        double deltaY = (endY - startY) / (n - 1);
+        double[] xs = new double[n], ys = new double[n], velocities = new double[n], angles = new double[n];
+        for (int i = 0; i < n; i++) {
+            xs[i] = startX + i * deltaX;
+            ys[i] = startY + i * deltaY;
+            velocities[i] = velocity;
+            angles[i] = angle;
+        }
+        addParticles(xs, ys, velocities, angles);
+    }
+
+    public void addParticlesFixedStartPointAndVelocity(int n, double startX, double startY, double startAngle, double endAngle, double velocity) {
+        double deltaAngle = (endAngle - startAngle) / (n - 1);
+        double[] xs = new double[n], ys = new double[n], velocities = new double[n], angles = new double[n];
+        for (int i = 0; i < n; i++) {
+            xs[i] = startX;
+            ys[i] = startY;
+            velocities[i] = velocity;
+            angles[i] = startAngle + i * deltaAngle;
+        }
+        addParticles(xs, ys, velocities, angles);
+    }
+
+    public void addParticlesFixedStartPointAndAngle(int n, double startX, double startY, double angle, double startVelocity, double endVelocity) {
+        double deltaVelocity = (endVelocity - startVelocity) / (n - 1);
+        double[] xs = new double[n], ys = new double[n], velocities = new double[n], angles = new double[n];
+        for (int i = 0; i < n; i++) {
+            xs[i] = startX;
+            ys[i] = startY;
+            velocities[i] = startVelocity + i * deltaVelocity;
+            angles[i] = angle;
+        }
+        addParticles(xs, ys, velocities, angles);
+    }
+
+    // The id the next particle added will get, every particle has a lower one
+    public int getNextParticleId() {
+        return nextParticleId.get();
+    }
+
+    // Queues replacing every particle and wall with the given ones, as loaded by SceneFile. The
+    // store is taken over and must not be used after. Particles queued before the restore are
+    // replaced too, but ids already handed out are never handed out again.
+    public void restore(ParticleStore loaded, List<Wall> loadedWalls, int loadedNextParticleId) {
+        nextParticleId.accumulateAndGet(loadedNextParticleId, Math::max);
+        List<Wall> wallsCopy = new ArrayList<>(loadedWalls);
+        commands.add(() -> {
+            // the loop thread may be using the engine's TickEngine outside the lock
+            particles.copyFrom(loaded, TickEngine.SEQUENTIAL);
+            walls.clear();
+            walls.addAll(wallsCopy);
+            wallsChanged = true;
+        });
+    }
+
+    public void removeParticle(int id) {
+        commands.add(() -> particles.remove(id));
+    }
+
+    public void clearParticles() {
+        commands.add(particles::clear);
+    }
+
+    public void addWall(Wall wall) {
+        commands.add(() -> {
+            walls.add(wall);
+            wallsChanged = true;
+        });
+    }
+
+    public void clearWalls() {
+        commands.add(() -> {
+            walls.clear();
+            wallsChanged = true;
+        });
+    }
+
+    // Applies everything queued so far, step() does this first. For callers that change the
+    // engine without a SimulationLoop running, tests and benchmarks.
+    public void applyCommands() {
+        long waitStart = System.nanoTime();
+        synchronized (lock) {
+            lockAcquired(waitStart);
+            drainCommands();
+        }
+    }
+
+    // With the lock held. A bad command (a duplicate id) is dropped rather than stopping the loop.
+    private void drainCommands() {
+        Runnable command;
+        while ((command = commands.poll()) != null) {
+            try {
+                command.run();
+            } catch (IllegalArgumentException e) {
+                LOG.warn("Dropped simulation command: %s", e.getMessage());
+            }
+        }
+        // walls added in a batch cost one grid rebuild
+        if (wallsChanged) {
+            wallGrid.clear();
+            wallGrid.addAll(walls);
+            publishedWalls = Collections.unmodifiableList(new ArrayList<>(walls));
+            wallsChanged = false;
+        }
+    }
+
+    // A copy of the wall list
+    public List<Wall> getWalls() {
+        synchronized (lock) {
+            return new ArrayList<>(walls);
+        }
+    }
+
+    // A consistent private copy of the current state
+    public SimulationSnapshot snapshot() {
+        long waitStart = System.nanoTime();
+        synchronized (lock) {
+            lockAcquired(waitStart);
+            return new SimulationSnapshot(tick, time, particles, walls);
+        }
+    }
+
+    public void shutdown() {
+        tickEngine.shutdown();
+    }
+}
@@ -0,0 +1,142 @@
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+// Drives a SimulationEngine at a fixed tick rate on its own thread.
+// Tick listeners run on the loop thread after every step, outside the engine lock; the server
+// syncs and flushes its clients there. Drawing is not tied to ticks, the GUI repaints on its own
+// timer and uses getInterpolation() to place particles between two ticks.
+//
+// Real time is added to an accumulator and the engine steps deltaTime for every deltaTime that
+// has built up, so simulated time keeps pace with the wall clock whatever the step costs. After
+// a stall the loop catches up at most maxCatchUpTicks at once and drops the rest, rather than
+// spiralling into ever longer bursts of steps.
+public class SimulationLoop implements Runnable {
+    public static final double DEFAULT_TICK_RATE = Double.parseDouble(System.getProperty("particles.tickRate", "80"));
+    public static final double DEFAULT_DELTA_TIME = 1.0 / DEFAULT_TICK_RATE;
+    public static final int DEFAULT_MAX_CATCH_UP_TICKS = Integer.getInteger("particles.maxCatchUpTicks", 5);
+
+    private final SimulationEngine engine;
+    private final double deltaTime;
+    private final long tickNanos;
+    private final int maxCatchUpTicks;
+    private final List<Runnable> tickListeners = new CopyOnWriteArrayList<>();
+    private volatile boolean running = true;
+
+    // the wall-clock time the engine's current state belongs to
+    private volatile long stateNanos;
+    // metrics, written by the loop thread only
+    private volatile long ticks;
+    private volatile long overruns;
+    private volatile long droppedTicks;
+    private volatile long maxTickNanos;
+
+    public SimulationLoop(SimulationEngine engine) {
+        this(engine, DEFAULT_TICK_RATE, DEFAULT_MAX_CATCH_UP_TICKS);
+    }
+
+    public SimulationLoop(SimulationEngine engine, double tickRate, int maxCatchUpTicks) {
+        this.engine = engine;
+        this.deltaTime = 1.0 / tickRate;
+        this.tickNanos = (long) (1e9 / tickRate);
+        this.maxCatchUpTicks = Math.max(1, maxCatchUpTicks);
+        engine.getMetrics().setLoop(this);
+    }
+
+    public void addTickListener(Runnable listener) {
+        tickListeners.add(listener);
+    }
+
+    public Thread start() {
+        Thread thread = new Thread(this, "simulation-loop");
+        thread.start();
+        return thread;
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    public double getDeltaTime() {
+        return deltaTime;
+    }
+
+    public long getTicks() {
+        return ticks;
+    }
+
+    // Ticks whose step and listeners took longer than a tick
+    public long getOverruns() {
+        return overruns;
+    }
+
+    // Ticks skipped because the loop fell more than maxCatchUpTicks behind
+    public long getDroppedTicks() {
+        return droppedTicks;
+    }
+
+    public long getMaxTickNanos() {
+        return maxTickNanos;
+    }
+
+    // How far back along its velocity to draw a particle, in seconds. Frames show the world one
+    // tick late, between the previous and the current state by how far the wall clock has run
+    // past the current one, so motion is smooth whatever the frame rate.
+    public double getInterpolation() {
+        long behind = System.nanoTime() - stateNanos;
+        return (tickNanos - Math.max(0, Math.min(tickNanos, behind))) / 1e9;
+    }
+
+    public String getStats() {
+        return ticks + " ticks, " + overruns + " overruns, " + droppedTicks + " dropped, max "
+                + String.format("%.2f", maxTickNanos / 1e6) + "ms";
+    }
+
+    @Override
+    public void run() {
+        long previous = System.nanoTime();
+        long accumulator = 0;
+        stateNanos = previous;
+        while (running) {
+            long now = System.nanoTime();
+            accumulator += now - previous;
+            previous = now;
+            long limit = maxCatchUpTicks * tickNanos;
+            if (accumulator > limit) {
+                droppedTicks += (accumulator - limit) / tickNanos;
+                accumulator = limit;
+            }
+
+            while (accumulator >= tickNanos && running) {
+                long start = System.nanoTime();
+                engine.step(deltaTime);
+                for (Runnable listener : tickListeners) {
+                    listener.run();
+                }
+                accumulator -= tickNanos;
+                ticks++;
+                long elapsed = System.nanoTime() - start;
+                engine.getMetrics().record(SimulationMetrics.Phase.TICK, elapsed);
+                if (elapsed > tickNanos) {
+                    overruns++;
+                }
+                if (elapsed > maxTickNanos) {
+                    maxTickNanos = elapsed;
+                }
+                // the state now covers the clock up to now, less what is still in the accumulator
+                stateNanos = now - accumulator;
+            }
+
+            // sleep until the next tick is due; parkNanos wakes within tens of microseconds
+            // where Thread.sleep rounds to whole milliseconds
+            long wait = tickNanos - accumulator - (System.nanoTime() - now);
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            if (Thread.interrupted()) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,248 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Where the time of a tick goes. Every phase of the tick records its duration into a
+// LatencyHistogram, so an overrun can be traced to the step, waiting for the engine lock,
+// encoding client syncs, socket writes or painting; the loop's counters and every client's
+// traffic and send queue are read from their owners when asked.
+//
+// Within the step, moving particles and bouncing them off walls and edges is one pass over the
+// store (a bounce happens at the time of impact, part way through the move), so MOVE covers both
+// and the cost of the wall grid cannot be told apart from integration here. The wallCollision
+// cases of SimulationBenchmark give it, as the difference between steps with and without walls.
+//
+// The engine owns one and records its phases; the loop, the server and the GUI record theirs
+// through SimulationEngine.getMetrics(). The same numbers go out over JMX (register()) and as a
+// plain-text report every -Dparticles.metricsInterval seconds (startReporting()), which covers
+// the interval since the previous one.
+public class SimulationMetrics implements SimulationMetricsMBean {
+    private static final Log LOG = Log.get("metrics");
+
+    public static final String OBJECT_NAME = "particles:type=SimulationMetrics";
+    // seconds between text reports, 0 for none
+    public static final int DEFAULT_REPORT_INTERVAL = Integer.getInteger("particles.metricsInterval", 0);
+
+    public enum Phase {
+        TICK("tick"),           // one whole tick on the loop thread: the step and the tick listeners
+        STEP("step"),           // SimulationEngine.step() with the lock held
+        COMMANDS("commands"),   // applying queued particle and wall changes
+        MOVE("move"),           // integration and wall/edge bounces, one pass
+        COLLIDE("collide"),     // particle-particle collisions
+        PUBLISH("publish"),     // copying the tick into a snapshot
+        LOCK_WAIT("lockWait"),  // waiting for the engine lock, any thread
+        SYNC("sync"),           // encoding state syncs for every client
+        FLUSH("flush"),         // writing the tick's batches to the sockets
+        PAINT("paint");         // one frame in the GUI
+
+        private final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final SimulationEngine engine;
+    private final LatencyHistogram[] histograms = new LatencyHistogram[PHASES.length];
+    private volatile SimulationLoop loop;
+    private volatile SimulationServer server;
+
+    // the histograms at the last text report, the next one covers what came after
+    private LatencyHistogram[] reported;
+
+    public SimulationMetrics(SimulationEngine engine) {
+        this.engine = engine;
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    public void setLoop(SimulationLoop loop) {
+        this.loop = loop;
+    }
+
+    public void setServer(SimulationServer server) {
+        this.server = server;
+    }
+
+    public void record(Phase phase, long nanos) {
+        histograms[phase.ordinal()].record(nanos);
+    }
+
+    public LatencyHistogram getHistogram(Phase phase) {
+        return histograms[phase.ordinal()];
+    }
+
+    // Makes the metrics visible to JMX clients, once per process
+    public void register() {
+        try {
+            MBeanServer beans = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!beans.isRegistered(name)) {
+                beans.registerMBean(this, name);
+            }
+        } catch (JMException e) {
+            LOG.warn("Could not register %s: %s", OBJECT_NAME, e);
+        }
+    }
+
+    // Prints a report every DEFAULT_REPORT_INTERVAL seconds on a daemon thread, if it is set
+    public void startReporting() {
+        if (DEFAULT_REPORT_INTERVAL > 0) {
+            startReporting(DEFAULT_REPORT_INTERVAL * 1000L);
+        }
+    }
+
+    public void startReporting(long intervalMillis) {
+        Thread thread = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(intervalMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                LOG.info(getIntervalReport().trim());
+            }
+        }, "metrics-report");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public long getTicks() {
+        SimulationLoop loop = this.loop;
+        return loop == null ? engine.getTick() : loop.getTicks();
+    }
+
+    @Override
+    public long getOverruns() {
+        SimulationLoop loop = this.loop;
+        return loop == null ? 0 : loop.getOverruns();
+    }
+
+    @Override
+    public long getDroppedTicks() {
+        SimulationLoop loop = this.loop;
+        return loop == null ? 0 : loop.getDroppedTicks();
+    }
+
+    @Override
+    public int getParticleCount() {
+        return engine.getParticleCount();
+    }
+
+    @Override
+    public int getClientCount() {
+        SimulationServer server = this.server;
+        return server == null ? 0 : server.getClients().size();
+    }
+
+    @Override
+    public double getTickP99Millis() {
+        return percentileMillis(Phase.TICK, 0.99);
+    }
+
+    @Override
+    public double getStepP99Millis() {
+        return percentileMillis(Phase.STEP, 0.99);
+    }
+
+    @Override
+    public double getMoveP99Millis() {
+        return percentileMillis(Phase.MOVE, 0.99);
+    }
+
+    @Override
+    public double getLockWaitP99Millis() {
+        return percentileMillis(Phase.LOCK_WAIT, 0.99);
+    }
+
+    @Override
+    public double getPaintP99Millis() {
+        return percentileMillis(Phase.PAINT, 0.99);
+    }
+
+    private double percentileMillis(Phase phase, double fraction) {
+        return getHistogram(phase).getPercentileNanos(fraction) / 1e6;
+    }
+
+    @Override
+    public String[] getPhaseSummaries() {
+        return phaseSummaries(histograms);
+    }
+
+    private static String[] phaseSummaries(LatencyHistogram[] histograms) {
+        List<String> lines = new ArrayList<>();
+        for (Phase phase : PHASES) {
+            LatencyHistogram histogram = histograms[phase.ordinal()];
+            if (histogram.getCount() > 0) {
+                lines.add(String.format("%-9s %s", phase.getLabel(), histogram.getSummary()));
+            }
+        }
+        return lines.toArray(new String[0]);
+    }
+
+    @Override
+    public String[] getClientSummaries() {
+        SimulationServer server = this.server;
+        if (server == null) {
+            return new String[0];
+        }
+        List<String> lines = new ArrayList<>();
+        for (ClientHandler client : server.getClients()) {
+            lines.add("client " + client.getClientId() + ": " + client.getTrafficStats());
+        }
+        return lines.toArray(new String[0]);
+    }
+
+    @Override
+    public String getReport() {
+        return report("since start", getPhaseSummaries());
+    }
+
+    // The report for what happened since the previous call
+    public synchronized String getIntervalReport() {
+        LatencyHistogram[] now = new LatencyHistogram[histograms.length];
+        LatencyHistogram[] interval = new LatencyHistogram[histograms.length];
+        for (int i = 0; i < histograms.length; i++) {
+            now[i] = histograms[i].copy();
+            interval[i] = reported == null ? now[i] : now[i].since(reported[i]);
+        }
+        reported = now;
+        return report("since last report", phaseSummaries(interval));
+    }
+
+    private String report(String period, String[] phases) {
+        StringBuilder out = new StringBuilder();
+        out.append("metrics (").append(period).append("): ")
+                .append(getTicks()).append(" ticks, ")
+                .append(getOverruns()).append(" overruns, ")
+                .append(getDroppedTicks()).append(" dropped, ")
+                .append(getParticleCount()).append(" particles, ")
+                .append(getClientCount()).append(" clients\n");
+        for (String line : phases) {
+            out.append("  ").append(line).append('\n');
+        }
+        for (String line : getClientSummaries()) {
+            out.append("  ").append(line).append('\n');
+        }
+        return out.toString();
+    }
+
+    @Override
+    public synchronized void reset() {
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+        reported = null;
+    }
+}
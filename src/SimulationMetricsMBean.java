@@ -0,0 +1,22 @@
+// What SimulationMetrics shows over JMX (jconsole, VisualVM), registered as
+// particles:type=SimulationMetrics. Times are cumulative since start or the last reset().
+public interface SimulationMetricsMBean {
+    long getTicks();
+    long getOverruns();
+    long getDroppedTicks();
+    int getParticleCount();
+    int getClientCount();
+
+    double getTickP99Millis();
+    double getStepP99Millis();
+    double getMoveP99Millis();
+    double getLockWaitP99Millis();
+    double getPaintP99Millis();
+
+    // one line per phase and per client, as in getReport()
+    String[] getPhaseSummaries();
+    String[] getClientSummaries();
+    String getReport();
+
+    void reset();
+}
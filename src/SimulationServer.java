@@ -0,0 +1,250 @@
+import java.awt.Color;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Accepts client connections and keeps them in sync with a SimulationEngine.
+// Has no Swing dependency (Color is only the sprite colour), so it also runs headless.
+//
+// All sockets are non-blocking and served by one Selector on the thread that calls run(), so
+// there is no limit on clients and no thread per client; an idle server sleeps in select().
+public class SimulationServer {
+    private static final Log LOG = Log.get("server");
+
+    public static final int DEFAULT_PORT = 12345;
+    // physics ticks per state sync, 4 is 20 snapshots a second at the default 80 ticks a second
+    public static final int DEFAULT_SYNC_INTERVAL = Integer.getInteger("particles.syncInterval", 4);
+    private static final double INTEREST_CELL_SIZE = 32;
+
+    private final SimulationEngine engine;
+    private final int port;
+    // written on the selector thread, read by the loop thread and the UI
+    private final List<ClientHandler> clients = new CopyOnWriteArrayList<>();
+    private final Queue<ClientHandler> closedClients = new ConcurrentLinkedQueue<>();
+    // sprite positions from a loaded scene for clients that have not connected yet, by client id
+    private final Map<Integer, int[]> spawnPositions = new ConcurrentHashMap<>();
+    // clients whose sprite moved since the last tick, each at most once
+    private final Queue<ClientHandler> movedSprites = new ConcurrentLinkedQueue<>();
+    private int nextClientId = 1;
+    private Selector selector;
+    private int syncInterval = DEFAULT_SYNC_INTERVAL;
+    // rebuilt for every sync, each client only reads the cells around its sprite
+    private final ParticleGrid interestGrid;
+    private long ticks;
+
+    public SimulationServer(SimulationEngine engine) {
+        this(engine, DEFAULT_PORT);
+    }
+
+    public SimulationServer(SimulationEngine engine, int port) {
+        this.engine = engine;
+        this.port = port;
+        this.interestGrid = new ParticleGrid(engine.getWorldWidth(), engine.getWorldHeight(), INTEREST_CELL_SIZE);
+        engine.getMetrics().setServer(this);
+    }
+
+    public SimulationEngine getEngine() {
+        return engine;
+    }
+
+    public List<ClientHandler> getClients() {
+        return clients;
+    }
+
+    public void setSyncInterval(int syncInterval) {
+        this.syncInterval = Math.max(1, syncInterval);
+    }
+
+    // Opens the server socket and serves the clients on the calling thread, never returns normally
+    public void run() throws IOException {
+        selector = Selector.open();
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        LOG.info("Master server started on port %d", port);
+
+        while (true) {
+            selector.select();
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    // a failed accept (out of file descriptors, a client resetting meanwhile) only
+                    // loses that connection, never the selector thread
+                    try {
+                        accept(serverChannel);
+                    } catch (IOException | RuntimeException e) {
+                        LOG.warn("Could not accept a client: %s", e);
+                    }
+                    continue;
+                }
+                ClientHandler client = (ClientHandler) key.attachment();
+                try {
+                    if (key.isReadable()) {
+                        client.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        client.onWritable();
+                    }
+                } catch (IOException e) {
+                    client.close(e);
+                } catch (RuntimeException e) {
+                    // a bug in decoding or a listener for one client drops that client only
+                    LOG.error(e, "Error serving client %d", client.getClientId());
+                    client.close(new IOException("internal error: " + e, e));
+                }
+            }
+            ClientHandler closed;
+            while ((closed = closedClients.poll()) != null) {
+                clientGone(closed);
+            }
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        ClientHandler client;
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            client = new ClientHandler(Color.RED, engine, this, nextClientId++, channel);
+            int[] spawn = spawnPositions.remove(client.getClientId());
+            if (spawn != null) {
+                client.moveTo(spawn[0], spawn[1]);
+            }
+            client.start(channel.register(selector, SelectionKey.OP_READ, client));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        if (client.isActive()) {
+            clients.add(client);
+        }
+        LOG.info("New client %d connected, current client count: %d", client.getClientId(), clients.size());
+    }
+
+    // Puts the sprites of a loaded scene back, positions are (clientId, x, y) triples: connected
+    // clients move there now, the others spawn there when a client with that id connects
+    public void restoreSprites(int[] positions) {
+        spawnPositions.clear();
+        for (int k = 0; k + 2 < positions.length; k += 3) {
+            int clientId = positions[k];
+            ClientHandler connected = null;
+            for (ClientHandler client : clients) {
+                if (client.getClientId() == clientId) {
+                    connected = client;
+                }
+            }
+            if (connected != null) {
+                connected.moveTo(positions[k + 1], positions[k + 2]);
+            } else {
+                spawnPositions.put(clientId, new int[]{positions[k + 1], positions[k + 2]});
+            }
+        }
+    }
+
+    // Called from any thread once a client's connection is closed, the others are told about it
+    // on the selector thread
+    public void removeClient(ClientHandler client) {
+        clients.remove(client);
+        closedClients.add(client);
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    private void clientGone(ClientHandler gone) {
+        for (ClientHandler client : clients) {
+            if (client.isActive()) {
+                client.notifyGone(gone.getClientId());
+            }
+        }
+    }
+
+    // Called by the SimulationLoop after every step: the clients get the sprites that moved,
+    // every syncInterval ticks a snapshot of the particles, then all of it is sent
+    public void onTick() {
+        broadcastSprites();
+        if (ticks++ % syncInterval == 0) {
+            broadcastState();
+        }
+        flushClients();
+    }
+
+    // Called by a client whose sprite moved and was not already waiting to be broadcast
+    void spriteMoved(ClientHandler client) {
+        movedSprites.add(client);
+    }
+
+    // Sends every other client the latest position of each sprite that moved since the last
+    // tick, so the fan-out follows the tick rate rather than how fast keys repeat
+    public void broadcastSprites() {
+        // a sprite that moves again while this runs waits for the next tick
+        for (int n = movedSprites.size(); n > 0; n--) {
+            ClientHandler moved = movedSprites.poll();
+            if (moved == null || !moved.clearSpriteMoved()) {
+                continue;
+            }
+            for (ClientHandler client : clients) {
+                if (client != moved && client.isActive()) {
+                    client.sendSpriteOf(moved);
+                }
+            }
+        }
+    }
+
+    // Sends every client a snapshot from the engine's latest published state, so the physics
+    // step never waits for encoding. Runs on the loop thread between steps, where the engine's
+    // TickEngine is free.
+    public void broadcastState() {
+        long start = System.nanoTime();
+        SimulationSnapshot snapshot = null;
+        try {
+            for (ClientHandler client : clients) {
+                if (client.isActive()) {
+                    if (snapshot == null) {
+                        snapshot = engine.acquireSnapshot();
+                        interestGrid.build(snapshot.getParticles(), engine.getTickEngine());
+                    }
+                    client.sendState(snapshot.getParticles(), interestGrid, snapshot.getTime());
+                }
+            }
+        } finally {
+            if (snapshot != null) {
+                snapshot.release();
+                engine.getMetrics().record(SimulationMetrics.Phase.SYNC, System.nanoTime() - start);
+            }
+        }
+    }
+
+    // Sends everything the clients were given during the last tick, called once per tick
+    public void flushClients() {
+        long start = System.nanoTime();
+        for (ClientHandler client : clients) {
+            if (client.isActive()) {
+                client.flush();
+            }
+        }
+        if (!clients.isEmpty()) {
+            engine.getMetrics().record(SimulationMetrics.Phase.FLUSH, System.nanoTime() - start);
+        }
+    }
+}
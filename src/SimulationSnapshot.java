@@ -0,0 +1,69 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Copy of the simulation state at the end of one tick. Nothing in here changes while it is
+// held, so it can be read from any thread without the engine lock.
+//
+// The engine publishes one after every tick (SimulationEngine.acquireSnapshot()) into snapshots
+// it recycles: a reader holds a reference from acquire until release(), and once the last
+// reader is done the snapshot goes back to the engine's pool and is overwritten by a later tick.
+// Snapshots from SimulationEngine.snapshot() are private copies and need no release.
+public class SimulationSnapshot {
+    private long tick;
+    private double time;
+    private final ParticleStore particles = new ParticleStore();
+    private List<Wall> walls;
+
+    // the engine's pool and the references held, the engine's latest snapshot counts as one
+    private final SimulationEngine owner;
+    private final AtomicInteger references = new AtomicInteger();
+
+    SimulationSnapshot(long tick, double time, ParticleStore particles, List<Wall> walls) {
+        this.owner = null;
+        this.tick = tick;
+        this.time = time;
+        this.particles.copyFrom(particles, TickEngine.SEQUENTIAL);
+        this.walls = Collections.unmodifiableList(new ArrayList<>(walls));
+    }
+
+    SimulationSnapshot(SimulationEngine owner) {
+        this.owner = owner;
+    }
+
+    // Overwrites a pooled snapshot nobody holds, walls is an unmodifiable list the engine
+    // replaces rather than changes
+    void copyFrom(long tick, double time, ParticleStore particles, List<Wall> walls, TickEngine tickEngine) {
+        this.tick = tick;
+        this.time = time;
+        this.particles.copyFrom(particles, tickEngine);
+        this.walls = walls;
+    }
+
+    void retain() {
+        references.incrementAndGet();
+    }
+
+    // Hands a snapshot from SimulationEngine.acquireSnapshot() back, it must not be read after
+    public void release() {
+        if (owner != null && references.decrementAndGet() == 0) {
+            owner.recycle(this);
+        }
+    }
+
+    public long getTick() { return tick; }
+    public double getTime() { return time; }
+    public int size() { return particles.size(); }
+    public int getID(int i) { return particles.getID(i); }
+    public double getX(int i) { return particles.getX(i); }
+    public double getY(int i) { return particles.getY(i); }
+    public double getVelocityX(int i) { return particles.getVelocityX(i); }
+    public double getVelocityY(int i) { return particles.getVelocityY(i); }
+    public List<Wall> getWalls() { return walls; }
+
+    // The particles as they were at the end of the tick, read-only
+    public ParticleStore getParticles() {
+        return particles;
+    }
+}
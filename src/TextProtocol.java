@@ -0,0 +1,143 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// The original text messages, each terminated by ';' (or '\n' for MOVE):
+//
+//   ID:clientId;   P:id,x,y,velocity,angle;   C:clientId,x,y;   DISCONNECTED_CLIENT:clientId;   MOVE:x,y
+//
+// plus R:id; (particle removed), S:seq,time; (end of snapshot), RESET:; and ACK:seq for state sync. There are no
+// delta messages, every changed particle goes out as a P message, which old peers understand.
+//
+// Messages are split on their terminator rather than on read() boundaries, so a message that
+// arrives in two reads, or two messages in one read, are both handled.
+public class TextProtocol extends WireProtocol {
+    // longest message we accept before deciding the stream is not ours
+    private static final int MAX_LINE = 256;
+
+    @Override
+    public String getName() {
+        return "text";
+    }
+
+    @Override
+    public void writeHello(ByteBuffer out, int clientId, int x, int y) {
+        put(out, "ID:" + clientId + ";");
+    }
+
+    @Override
+    public void writeParticle(ByteBuffer out, int id, double x, double y, double velocity, double angle) {
+        put(out, "P:" + id + "," + (int) x + "," + (int) y + "," + velocity + "," + angle + ";");
+    }
+
+    @Override
+    public void writeSprite(ByteBuffer out, int clientId, int x, int y) {
+        put(out, "C:" + clientId + "," + x + "," + y + ";");
+    }
+
+    @Override
+    public void writeClientGone(ByteBuffer out, int clientId) {
+        put(out, "DISCONNECTED_CLIENT:" + clientId + ";");
+    }
+
+    @Override
+    public void writeParticleState(ByteBuffer out, int id, int x, int y, int vx, int vy) {
+        double velocity = Math.hypot(vx, vy) / STATE_SCALE;
+        double angle = Math.toDegrees(Math.atan2(vy, vx));
+        put(out, "P:" + id + "," + (int) (x / STATE_SCALE) + "," + (int) (y / STATE_SCALE) + "," + velocity + "," + angle + ";");
+    }
+
+    @Override
+    public void writeParticleRemoved(ByteBuffer out, int id) {
+        put(out, "R:" + id + ";");
+    }
+
+    @Override
+    public void writeSnapshot(ByteBuffer out, int seq, double time) {
+        put(out, "S:" + seq + "," + time + ";");
+    }
+
+    @Override
+    public void writeReset(ByteBuffer out) {
+        put(out, "RESET:;");
+    }
+
+    @Override
+    public void writeAck(ByteBuffer out, int seq) {
+        put(out, "ACK:" + seq + "\n");
+    }
+
+    @Override
+    public void writeMove(ByteBuffer out, int x, int y) {
+        put(out, "MOVE:" + x + "," + y + "\n");
+    }
+
+    private static void put(ByteBuffer out, String message) {
+        out.put(message.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Override
+    public void decode(ByteBuffer in, Listener listener) throws IOException {
+        int start = in.position();
+        for (int i = start; i < in.limit(); i++) {
+            byte b = in.get(i);
+            if (b == ';' || b == '\n') {
+                String message = new String(in.array(), in.arrayOffset() + start, i - start, StandardCharsets.US_ASCII).trim();
+                if (!message.isEmpty()) {
+                    dispatch(message, listener);
+                }
+                start = i + 1;
+            }
+        }
+        if (in.limit() - start > MAX_LINE) {
+            throw new IOException("Unterminated message of " + (in.limit() - start) + " bytes");
+        }
+        in.position(start);
+    }
+
+    private static void dispatch(String message, Listener listener) throws IOException {
+        int colon = message.indexOf(':');
+        if (colon < 0) {
+            throw new IOException("Malformed message: " + message);
+        }
+        String type = message.substring(0, colon);
+        String[] fields = message.substring(colon + 1).split(",");
+        try {
+            switch (type) {
+                case "ID":
+                    // the text format never carried the spawn position
+                    listener.onHello(0, Integer.parseInt(fields[0]), -1, -1);
+                    break;
+                case "P":
+                    listener.onParticle(Integer.parseInt(fields[0]), Float.parseFloat(fields[1]), Float.parseFloat(fields[2]),
+                            Float.parseFloat(fields[3]), Float.parseFloat(fields[4]));
+                    break;
+                case "C":
+                    listener.onSprite(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]), Integer.parseInt(fields[2]));
+                    break;
+                case "DISCONNECTED_CLIENT":
+                    listener.onClientGone(Integer.parseInt(fields[0]));
+                    break;
+                case "MOVE":
+                    listener.onMove(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]));
+                    break;
+                case "R":
+                    listener.onParticleRemoved(Integer.parseInt(fields[0]));
+                    break;
+                case "S":
+                    listener.onSnapshot(Integer.parseInt(fields[0]), Double.parseDouble(fields[1]));
+                    break;
+                case "ACK":
+                    listener.onAck(Integer.parseInt(fields[0]));
+                    break;
+                case "RESET":
+                    listener.onReset();
+                    break;
+                default:
+                    break;
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Malformed message: " + message);
+        }
+    }
+}
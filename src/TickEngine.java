@@ -0,0 +1,135 @@
+import java.util.concurrent.Phaser;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs a per-tick loop over [0, n) split into contiguous chunks.
+// The worker threads are created once and parked on a Phaser between ticks, so a tick
+// costs two barrier crossings instead of one task + latch count per particle.
+public class TickEngine {
+
+    // One call covers the index range [from, to). Implementations must only touch their own range.
+    public interface ChunkTask {
+        void run(int from, int to);
+    }
+
+    // ~2k particles per chunk keeps a chunk's working set inside L1/L2 while leaving
+    // enough chunks for the workers to balance uneven collision cost between them.
+    public static final int DEFAULT_CHUNK_SIZE = 2048;
+    // Below this many items a single thread is faster than waking the workers up.
+    public static final int DEFAULT_SEQUENTIAL_THRESHOLD = 4096;
+    // Runs every task on the calling thread; having no workers, it can be shared between threads
+    public static final TickEngine SEQUENTIAL = new TickEngine(1);
+
+    private final int parallelism;
+    private final int chunkSize;
+    private final int sequentialThreshold;
+    private final Phaser phaser;
+    private final AtomicInteger nextChunk = new AtomicInteger();
+    private final Thread[] workers;
+
+    // written by the calling thread before the start barrier, read by workers after it
+    private ChunkTask task;
+    private int size;
+    private int chunkCount;
+    private int currentChunkSize;
+    private volatile boolean shutdown = false;
+    private volatile Throwable failure;
+
+    public TickEngine() {
+        this(Integer.getInteger("particles.threads", Runtime.getRuntime().availableProcessors()));
+    }
+
+    public TickEngine(int parallelism) {
+        this(parallelism, DEFAULT_CHUNK_SIZE, DEFAULT_SEQUENTIAL_THRESHOLD);
+    }
+
+    public TickEngine(int parallelism, int chunkSize, int sequentialThreshold) {
+        this.parallelism = Math.max(1, parallelism);
+        this.chunkSize = Math.max(1, chunkSize);
+        this.sequentialThreshold = sequentialThreshold;
+        // the calling thread is one of the parties, so we only spawn parallelism - 1 workers
+        this.phaser = new Phaser(this.parallelism);
+        this.workers = new Thread[this.parallelism - 1];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(this::workerLoop, "tick-worker-" + (i + 1));
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    // Runs task over [0, n) and returns once every chunk is done.
+    // Not reentrant: only one thread may drive the engine at a time.
+    public void forEach(int n, ChunkTask task) {
+        if (n <= 0) {
+            return;
+        }
+        if (parallelism == 1 || n < sequentialThreshold) {
+            task.run(0, n);
+            return;
+        }
+
+        this.task = task;
+        this.size = n;
+        // at least chunkSize items per chunk, but no fewer than ~4 chunks per thread for balancing
+        this.currentChunkSize = Math.max(chunkSize, n / (parallelism * 4));
+        this.chunkCount = (n + currentChunkSize - 1) / currentChunkSize;
+        nextChunk.set(0);
+
+        phaser.arriveAndAwaitAdvance(); // start
+        runChunks();
+        phaser.arriveAndAwaitAdvance(); // finish
+
+        this.task = null;
+        Throwable e = failure;
+        if (e != null) {
+            failure = null;
+            if (e instanceof Error) {
+                throw (Error) e;
+            }
+            if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            }
+            throw new IllegalStateException("Tick chunk failed", e);
+        }
+    }
+
+    private void workerLoop() {
+        while (true) {
+            phaser.arriveAndAwaitAdvance();
+            if (shutdown) {
+                phaser.arriveAndDeregister();
+                return;
+            }
+            runChunks();
+            phaser.arriveAndAwaitAdvance();
+        }
+    }
+
+    private void runChunks() {
+        int chunk;
+        while ((chunk = nextChunk.getAndIncrement()) < chunkCount) {
+            int from = chunk * currentChunkSize;
+            int to = Math.min(size, from + currentChunkSize);
+            try {
+                task.run(from, to);
+            } catch (Throwable e) {
+                // every party still has to reach the finish barrier, so the error is rethrown by forEach,
+                // an OutOfMemoryError or StackOverflowError as much as an exception
+                failure = e;
+            }
+        }
+    }
+
+    public void shutdown() {
+        if (shutdown) {
+            return;
+        }
+        shutdown = true;
+        if (workers.length > 0) {
+            phaser.arriveAndDeregister();
+        }
+    }
+}
@@ -1,16 +1,27 @@
 public class Wall {
-    private double x1, y1, x2, y2; 
+    private double x1, y1, x2, y2;
+    // derived once here instead of on every bounce
+    private final double angle;
+    private final double normalX, normalY;
 
     public Wall(double x1, double y1, double x2, double y2) {
         this.x1 = x1;
         this.y1 = y1;
         this.x2 = x2;
         this.y2 = y2;
+        this.angle = Math.atan2(y2 - y1, x2 - x1);
+        // unit normal, the wall direction rotated by 90 degrees
+        double length = Math.hypot(x2 - x1, y2 - y1);
+        this.normalX = length == 0 ? 0 : -(y2 - y1) / length;
+        this.normalY = length == 0 ? 0 : (x2 - x1) / length;
     }
 
     public double getX1() { return x1; }
     public double getY1() { return y1; }
     public double getX2() { return x2; }
     public double getY2() { return y2; }
+    public double getAngle() { return angle; }
+    public double getNormalX() { return normalX; }
+    public double getNormalY() { return normalY; }
 
 }
@@ -0,0 +1,231 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Uniform grid over the world that lists, for every cell, the walls passing through it.
+// A particle's swept segment only has to be tested against the walls in the cells it crosses.
+// Walls outside the world (like the border walls) are clamped into the edge cells.
+//
+// The grid is rebuilt on every add/clear, so adding walls must not overlap with queries.
+public class WallGrid {
+    public static final int DEFAULT_CELL_SIZE = 32;
+    // cells are widened by this much when rasterizing so rounding never drops a wall
+    private static final double EPSILON = 0.5;
+
+    private final double cellSize;
+    private final int columns, rows;
+    private final List<Wall> walls = new ArrayList<>();
+
+    // compressed cell lists: walls of cell c are cellWalls[cellStart[c] .. cellStart[c + 1])
+    private int[] cellStart;
+    private int[] cellWalls = new int[0];
+    private Wall[] wallArray = new Wall[0];
+
+    public WallGrid(double worldWidth, double worldHeight) {
+        this(worldWidth, worldHeight, DEFAULT_CELL_SIZE);
+    }
+
+    public WallGrid(double worldWidth, double worldHeight, double cellSize) {
+        this.cellSize = cellSize;
+        this.columns = Math.max(1, (int) Math.ceil(worldWidth / cellSize));
+        this.rows = Math.max(1, (int) Math.ceil(worldHeight / cellSize));
+        this.cellStart = new int[columns * rows + 1];
+    }
+
+    public void add(Wall wall) {
+        walls.add(wall);
+        rebuild();
+    }
+
+    // Adds every wall with a single rebuild
+    public void addAll(List<Wall> walls) {
+        this.walls.addAll(walls);
+        rebuild();
+    }
+
+    public void clear() {
+        walls.clear();
+        rebuild();
+    }
+
+    public int size() {
+        return walls.size();
+    }
+
+    // Each thread that sweeps particles needs its own Query
+    public Query newQuery() {
+        return new Query();
+    }
+
+    private void rebuild() {
+        wallArray = walls.toArray(new Wall[0]);
+        int cells = columns * rows;
+        int[] counts = new int[cells + 1];
+        for (Wall wall : wallArray) {
+            forEachCell(wall, counts, null, -1);
+        }
+        // prefix sums turn the counts into start offsets
+        int total = 0;
+        for (int c = 0; c < cells; c++) {
+            int count = counts[c];
+            counts[c] = total;
+            total += count;
+        }
+        counts[cells] = total;
+        int[] entries = new int[total];
+        int[] fill = Arrays.copyOf(counts, cells);
+        for (int w = 0; w < wallArray.length; w++) {
+            forEachCell(wallArray[w], fill, entries, w);
+        }
+        cellStart = counts;
+        cellWalls = entries;
+    }
+
+    // Counts (entries == null) or records wall index w in every cell the wall touches
+    private void forEachCell(Wall wall, int[] slots, int[] entries, int w) {
+        int minColumn = column(Math.min(wall.getX1(), wall.getX2()) - EPSILON);
+        int maxColumn = column(Math.max(wall.getX1(), wall.getX2()) + EPSILON);
+        int minRow = row(Math.min(wall.getY1(), wall.getY2()) - EPSILON);
+        int maxRow = row(Math.max(wall.getY1(), wall.getY2()) + EPSILON);
+        for (int r = minRow; r <= maxRow; r++) {
+            for (int c = minColumn; c <= maxColumn; c++) {
+                if (segmentTouchesCell(wall.getX1(), wall.getY1(), wall.getX2(), wall.getY2(), c, r)) {
+                    int cell = r * columns + c;
+                    if (entries == null) {
+                        slots[cell]++;
+                    } else {
+                        entries[slots[cell]++] = w;
+                    }
+                }
+            }
+        }
+    }
+
+    private int column(double x) {
+        return Math.max(0, Math.min(columns - 1, (int) Math.floor(x / cellSize)));
+    }
+
+    private int row(double y) {
+        return Math.max(0, Math.min(rows - 1, (int) Math.floor(y / cellSize)));
+    }
+
+    // Liang-Barsky clip of the segment against the (widened) cell; edge cells extend to infinity
+    private boolean segmentTouchesCell(double x1, double y1, double x2, double y2, int c, int r) {
+        double minX = c == 0 ? Double.NEGATIVE_INFINITY : c * cellSize - EPSILON;
+        double maxX = c == columns - 1 ? Double.POSITIVE_INFINITY : (c + 1) * cellSize + EPSILON;
+        double minY = r == 0 ? Double.NEGATIVE_INFINITY : r * cellSize - EPSILON;
+        double maxY = r == rows - 1 ? Double.POSITIVE_INFINITY : (r + 1) * cellSize + EPSILON;
+        double tMin = 0;
+        double tMax = 1;
+        double dx = x2 - x1;
+        if (dx == 0) {
+            if (x1 < minX || x1 > maxX) {
+                return false;
+            }
+        } else {
+            double t1 = (minX - x1) / dx;
+            double t2 = (maxX - x1) / dx;
+            tMin = Math.max(tMin, Math.min(t1, t2));
+            tMax = Math.min(tMax, Math.max(t1, t2));
+            if (tMin > tMax) {
+                return false;
+            }
+        }
+        double dy = y2 - y1;
+        if (dy == 0) {
+            return y1 >= minY && y1 <= maxY;
+        }
+        double t1 = (minY - y1) / dy;
+        double t2 = (maxY - y1) / dy;
+        tMin = Math.max(tMin, Math.min(t1, t2));
+        tMax = Math.min(tMax, Math.max(t1, t2));
+        return tMin <= tMax;
+    }
+
+    // Segment (x1, y1)-(x2, y2) against the wall segment
+    public static boolean intersects(double x1, double y1, double x2, double y2, Wall wall) {
+        return intersectionTime(x1, y1, x2, y2, wall) >= 0;
+    }
+
+    // How far along the segment (x1, y1)-(x2, y2) it crosses the wall, from 0 to 1, or -1 if
+    // it does not
+    public static double intersectionTime(double x1, double y1, double x2, double y2, Wall wall) {
+        double x3 = wall.getX1();
+        double y3 = wall.getY1();
+        double x4 = wall.getX2();
+        double y4 = wall.getY2();
+
+        double temp = (x1 - x2) * (y3 - y4) - (y1 - y2) * (x3 - x4);
+        if (temp == 0) return -1;
+
+        double t = ((x1 - x3) * (y3 - y4) - (y1 - y3) * (x3 - x4)) / temp;
+        double u = -((x1 - x2) * (y1 - y3) - (y1 - y2) * (x1 - x3)) / temp;
+
+        return t >= 0 && t <= 1 && u >= 0 && u <= 1 ? t : -1;
+    }
+
+    // Per-thread sweep state. A wall spanning several cells is tested once per sweep,
+    // tracked with a stamp per wall rather than a set so sweeping does not allocate.
+    public class Query {
+        private int[] marks = new int[0];
+        private int stamp = 0;
+        private double hitTime;
+
+        // The first wall the segment crosses other than ignore, or null. getHitTime() says
+        // where along the segment.
+        public Wall firstHit(double x1, double y1, double x2, double y2, Wall ignore) {
+            int[] starts = cellStart;
+            int[] entries = cellWalls;
+            Wall[] all = wallArray;
+            Wall first = null;
+            hitTime = -1;
+            if (all.length == 0) {
+                return null;
+            }
+            if (marks.length < all.length) {
+                marks = new int[all.length];
+                stamp = 0;
+            }
+            if (++stamp == 0) {
+                Arrays.fill(marks, 0);
+                stamp = 1;
+            }
+
+            int minColumn = column(Math.min(x1, x2));
+            int maxColumn = column(Math.max(x1, x2));
+            int minRow = row(Math.min(y1, y2));
+            int maxRow = row(Math.max(y1, y2));
+            boolean singleCell = minColumn == maxColumn && minRow == maxRow;
+            for (int r = minRow; r <= maxRow; r++) {
+                for (int c = minColumn; c <= maxColumn; c++) {
+                    if (!singleCell && !segmentTouchesCell(x1, y1, x2, y2, c, r)) {
+                        continue;
+                    }
+                    int cell = r * columns + c;
+                    for (int e = starts[cell]; e < starts[cell + 1]; e++) {
+                        int w = entries[e];
+                        if (marks[w] == stamp) {
+                            continue;
+                        }
+                        marks[w] = stamp;
+                        Wall wall = all[w];
+                        if (wall == ignore) {
+                            continue;
+                        }
+                        double t = intersectionTime(x1, y1, x2, y2, wall);
+                        if (t >= 0 && (first == null || t < hitTime)) {
+                            first = wall;
+                            hitTime = t;
+                        }
+                    }
+                }
+            }
+            return first;
+        }
+
+        // Where along its segment the last firstHit() found its wall, from 0 to 1
+        public double getHitTime() {
+            return hitTime;
+        }
+    }
+}
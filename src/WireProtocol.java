@@ -0,0 +1,98 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Encodes and decodes the messages exchanged between SimulationServer and ClientServer.
+// Both sides pick the same implementation with -Dparticles.protocol=binary|text; binary is the
+// default and text is the old "P:..;" format, kept for peers that still speak it.
+//
+// Encoders append one message at the buffer's position and need at least MAX_MESSAGE_SIZE bytes
+// remaining. decode() consumes every complete message in a buffer that is ready for reading
+// (flipped) and leaves a trailing partial message in place, so the caller can compact() the
+// buffer and read more bytes after it.
+//
+// Particle state is replicated with periodic snapshots (see ClientView): a snapshot is any number
+// of PARTICLE_STATE, delta and PARTICLE_REMOVED messages closed by SNAPSHOT, which the client
+// answers with ACK. RESET makes the client forget every particle and sprite, the server follows
+// with their current state; it is sent after messages to a slow client had to be dropped (see
+// ClientHandler). State is sent in fixed point, STATE_SCALE units per pixel (and per pixel per
+// second for velocities), so both sides hold exactly the same baseline values.
+public abstract class WireProtocol {
+    public static final int VERSION = 3;
+    public static final int MAX_MESSAGE_SIZE = 4096;
+    public static final float STATE_SCALE = 16f;
+    // a delta message holds at most this many particles, so it stays under MAX_MESSAGE_SIZE
+    public static final int MAX_DELTAS_PER_MESSAGE = 128;
+
+    public interface Listener {
+        default void onHello(int version, int clientId, int x, int y) {}
+        default void onParticle(int id, float x, float y, float velocity, float angle) {}
+        default void onSprite(int clientId, int x, int y) {}
+        default void onClientGone(int clientId) {}
+        default void onParticleState(int id, int x, int y, int vx, int vy) {}
+        default void onParticleDelta(int id, int dx, int dy, int dvx, int dvy) {}
+        default void onParticleRemoved(int id) {}
+        default void onSnapshot(int seq, double time) {}
+        default void onReset() {}
+        default void onMove(int x, int y) {}
+        default void onAck(int seq) {}
+    }
+
+    private static final WireProtocol INSTANCE = create(System.getProperty("particles.protocol", "binary"));
+
+    public static WireProtocol get() {
+        return INSTANCE;
+    }
+
+    public static WireProtocol create(String name) {
+        switch (name) {
+            case "binary":
+                return new BinaryProtocol();
+            case "text":
+                return new TextProtocol();
+            default:
+                throw new IllegalArgumentException("Unknown protocol: " + name);
+        }
+    }
+
+    public abstract String getName();
+
+    // server -> client
+    public abstract void writeHello(ByteBuffer out, int clientId, int x, int y);
+    public abstract void writeParticle(ByteBuffer out, int id, double x, double y, double velocity, double angle);
+    public abstract void writeSprite(ByteBuffer out, int clientId, int x, int y);
+    public abstract void writeClientGone(ByteBuffer out, int clientId);
+
+    // Full fixed-point state of one particle, for particles the client does not have yet
+    public abstract void writeParticleState(ByteBuffer out, int id, int x, int y, int vx, int vy);
+    public abstract void writeParticleRemoved(ByteBuffer out, int id);
+    // time is the simulation time the snapshot was taken at, clients pace their dead reckoning by it
+    public abstract void writeSnapshot(ByteBuffer out, int seq, double time);
+    public abstract void writeReset(ByteBuffer out);
+
+    // Protocols without delta messages make ClientView send full states instead. Their peers
+    // are not expected to acknowledge snapshots either.
+    public boolean supportsDeltas() {
+        return false;
+    }
+
+    // Deltas are written in groups: beginDeltas(), up to MAX_DELTAS_PER_MESSAGE writeDelta()
+    // calls with ids in the order they are written, then endDeltas(). A group is one message.
+    public int beginDeltas(ByteBuffer out) {
+        throw new UnsupportedOperationException(getName() + " protocol has no delta messages");
+    }
+
+    public void writeDelta(ByteBuffer out, int previousId, int id, int dx, int dy, int dvx, int dvy) {
+        throw new UnsupportedOperationException(getName() + " protocol has no delta messages");
+    }
+
+    public void endDeltas(ByteBuffer out, int start, int count) {
+        throw new UnsupportedOperationException(getName() + " protocol has no delta messages");
+    }
+
+    // client -> server
+    public abstract void writeMove(ByteBuffer out, int x, int y);
+    public abstract void writeAck(ByteBuffer out, int seq);
+
+    // Throws if the stream is not valid for this protocol, the connection should then be dropped
+    public abstract void decode(ByteBuffer in, Listener listener) throws IOException;
+}
@@ -0,0 +1,356 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+// Self-checks for delta-compressed state sync: a ClientView encodes snapshots of a running
+// simulation, the bytes are decoded the way ClientServer decodes them, and after every snapshot
+// the client's dead-reckoned particles must be where the server has them, to within the view's
+// thresholds, for every particle in the area of interest. Covered: snapshots acknowledged as they
+// arrive, acks held back until the in-flight window is full, and snapshots dropped on their way
+// (drop-oldest) followed by RESET and a resync.
+public class DeltaSyncCheck extends SelfCheck {
+    private static final double DELTA_TIME = 1.0 / 80;
+    private static final int STEPS_PER_SYNC = 4;
+    private static final double VIEW_WIDTH = 400, VIEW_HEIGHT = 300, VIEW_MARGIN = 16;
+
+    private final WireProtocol protocol = new BinaryProtocol();
+
+    // What the client holds, built only from the decoded stream
+    private static final class Client implements WireProtocol.Listener {
+        // id -> {x, y, vx, vy} in fixed point
+        final Map<Integer, int[]> particles = new HashMap<>();
+        // id -> simulation time of the snapshot that last changed it
+        final Map<Integer, Double> baselineTimes = new HashMap<>();
+        private final List<Integer> changed = new ArrayList<>();
+        int lastSeq;
+        double lastTime;
+        int deltas;
+        int resets;
+
+        @Override
+        public void onParticleState(int id, int x, int y, int vx, int vy) {
+            particles.put(id, new int[]{x, y, vx, vy});
+            changed.add(id);
+        }
+
+        @Override
+        public void onParticleDelta(int id, int dx, int dy, int dvx, int dvy) {
+            int[] state = particles.get(id);
+            if (state == null) {
+                // a delta for a particle the client never got; the checks below will miss it
+                return;
+            }
+            state[0] += dx;
+            state[1] += dy;
+            state[2] += dvx;
+            state[3] += dvy;
+            changed.add(id);
+            deltas++;
+        }
+
+        @Override
+        public void onParticleRemoved(int id) {
+            particles.remove(id);
+            baselineTimes.remove(id);
+        }
+
+        @Override
+        public void onSnapshot(int seq, double time) {
+            for (int id : changed) {
+                baselineTimes.put(id, time);
+            }
+            changed.clear();
+            lastSeq = seq;
+            lastTime = time;
+        }
+
+        @Override
+        public void onReset() {
+            particles.clear();
+            baselineTimes.clear();
+            changed.clear();
+            resets++;
+        }
+    }
+
+    // The server's side of one connection: the view and the bytes it has encoded so far
+    private final class Connection {
+        final ClientView view;
+        final OutboundBatcher batcher = new OutboundBatcher();
+        final List<byte[]> batches = new ArrayList<>();
+        final Client client = new Client();
+        final ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+        final Random chunks = new Random(5);
+
+        Connection(double particleSize) {
+            view = new ClientView(particleSize);
+            view.setViewSize(VIEW_WIDTH, VIEW_HEIGHT, VIEW_MARGIN);
+            batcher.setSink(batch -> {
+                byte[] bytes = new byte[batch.remaining()];
+                batch.get(bytes);
+                batches.add(bytes);
+            });
+        }
+
+        boolean sendSnapshot(SimulationEngine engine, ParticleGrid grid, double centerX, double centerY) throws IOException {
+            grid.build(engine.getParticles(), TickEngine.SEQUENTIAL);
+            boolean sent = view.writeSnapshot(engine.getParticles(), grid, engine.getTime(), centerX, centerY, protocol, batcher);
+            batcher.flush();
+            return sent;
+        }
+
+        // Decodes everything encoded so far in random-sized reads, as a socket would hand it over
+        void deliver() throws IOException {
+            for (byte[] batch : batches) {
+                int offset = 0;
+                while (offset < batch.length) {
+                    int size = Math.min(batch.length - offset, Math.min(readBuffer.remaining(), 1 + chunks.nextInt(1500)));
+                    readBuffer.put(batch, offset, size);
+                    offset += size;
+                    readBuffer.flip();
+                    protocol.decode(readBuffer, client);
+                    readBuffer.compact();
+                }
+            }
+            batches.clear();
+        }
+
+        // What ClientHandler does once it had to drop queued bytes under drop-oldest
+        void dropAndResync() throws IOException {
+            batches.clear();
+            view.resync();
+            protocol.writeReset(batcher.begin());
+            batcher.commit();
+        }
+    }
+
+    @Override
+    protected void run() throws IOException {
+        checkAcknowledged();
+        checkAckWindow();
+        checkDropped();
+    }
+
+    // Every snapshot is delivered and acknowledged before the next
+    private void checkAcknowledged() throws IOException {
+        SimulationEngine engine = newEngine(1);
+        ParticleGrid grid = newGrid(engine);
+        Connection connection = new Connection(engine.getParticleSize());
+        Random random = new Random(2);
+        boolean matches = true, sentAll = true;
+        for (int sync = 0; sync < 150; sync++) {
+            churn(engine, random);
+            advance(engine);
+            double[] center = viewCenter(engine, sync);
+            sentAll &= connection.sendSnapshot(engine, grid, center[0], center[1]);
+            connection.deliver();
+            connection.view.acknowledge(connection.client.lastSeq);
+            matches &= clientMatches(engine, connection, center, "acknowledged sync " + sync);
+        }
+        check(sentAll, "no snapshot is skipped while every one is acknowledged");
+        check(matches, "client matches the server after every acknowledged snapshot");
+        check(connection.client.deltas > 0, "snapshots carried deltas (" + connection.client.deltas + ")");
+        engine.shutdown();
+    }
+
+    // Acks are held back: the view stops after MAX_SNAPSHOTS_IN_FLIGHT and resumes once acked,
+    // and an older ack arriving late does not move the window back
+    private void checkAckWindow() throws IOException {
+        SimulationEngine engine = newEngine(3);
+        ParticleGrid grid = newGrid(engine);
+        Connection connection = new Connection(engine.getParticleSize());
+        int sent = 0;
+        double[] center = null;
+        for (int sync = 0; sync < 3 * ClientView.MAX_SNAPSHOTS_IN_FLIGHT; sync++) {
+            advance(engine);
+            center = viewCenter(engine, sync);
+            if (connection.sendSnapshot(engine, grid, center[0], center[1])) {
+                sent++;
+            }
+            connection.deliver();
+        }
+        check(sent == ClientView.MAX_SNAPSHOTS_IN_FLIGHT,
+                "unacknowledged snapshots stop at the window (" + sent + " sent)");
+
+        connection.view.acknowledge(connection.client.lastSeq);
+        connection.view.acknowledge(1);
+        check(connection.view.getAckedSeq() == connection.client.lastSeq, "a late, older ack is ignored");
+        boolean matches = true, resumed = true;
+        for (int sync = 0; sync < 40; sync++) {
+            advance(engine);
+            center = viewCenter(engine, sync);
+            resumed &= connection.sendSnapshot(engine, grid, center[0], center[1]);
+            connection.deliver();
+            connection.view.acknowledge(connection.client.lastSeq);
+            matches &= clientMatches(engine, connection, center, "sync " + sync + " after the window reopened");
+        }
+        check(resumed, "snapshots resume once the client acknowledges");
+        check(matches, "client matches the server after catching up");
+        engine.shutdown();
+    }
+
+    // Snapshots lost on the way leave the client wrong until RESET and a resync repair it
+    private void checkDropped() throws IOException {
+        SimulationEngine engine = newEngine(4);
+        ParticleGrid grid = newGrid(engine);
+        Connection connection = new Connection(engine.getParticleSize());
+        Random random = new Random(6);
+        int sync = 0;
+        for (; sync < 20; sync++) {
+            churn(engine, random);
+            advance(engine);
+            double[] center = viewCenter(engine, sync);
+            connection.sendSnapshot(engine, grid, center[0], center[1]);
+            connection.deliver();
+            connection.view.acknowledge(connection.client.lastSeq);
+        }
+
+        // without a resync the loss shows, so the comparison below can be trusted to notice
+        SimulationEngine unrepaired = newEngine(4);
+        Connection lossy = new Connection(engine.getParticleSize());
+        boolean noticed = false;
+        for (int k = 0; k < 30 && !noticed; k++) {
+            advance(unrepaired);
+            double[] center = viewCenter(unrepaired, k);
+            lossy.sendSnapshot(unrepaired, grid, center[0], center[1]);
+            if (k % 3 == 1) {
+                lossy.batches.clear();
+                lossy.view.acknowledge(lossy.view.getSeq());
+            } else {
+                lossy.deliver();
+                lossy.view.acknowledge(lossy.client.lastSeq);
+                noticed = !clientMatches(unrepaired, lossy, center, null);
+            }
+        }
+        check(noticed, "a dropped snapshot without a resync leaves the client wrong");
+        unrepaired.shutdown();
+
+        // drop-oldest: queued snapshots are thrown away, then RESET and the current state
+        boolean matches = true;
+        for (int round = 0; round < 5; round++) {
+            for (int k = 0; k < 3; k++, sync++) {
+                advance(engine);
+                double[] center = viewCenter(engine, sync);
+                connection.sendSnapshot(engine, grid, center[0], center[1]);
+            }
+            connection.dropAndResync();
+            for (int k = 0; k < 10; k++, sync++) {
+                churn(engine, random);
+                advance(engine);
+                double[] center = viewCenter(engine, sync);
+                connection.sendSnapshot(engine, grid, center[0], center[1]);
+                connection.deliver();
+                connection.view.acknowledge(connection.client.lastSeq);
+                matches &= clientMatches(engine, connection, center, "sync " + sync + " after drop " + round);
+            }
+        }
+        check(connection.client.resets == 5, "every drop sent RESET (" + connection.client.resets + ")");
+        check(matches, "client matches the server after every resync");
+        engine.shutdown();
+    }
+
+    // True if every particle inside the view is on the client within the thresholds and the
+    // client holds nothing that is gone or far outside; reports the first mismatch under label
+    private boolean clientMatches(SimulationEngine engine, Connection connection, double[] center, String label) {
+        Client client = connection.client;
+        ParticleStore particles = engine.getParticles();
+        double size = engine.getParticleSize();
+        double time = client.lastTime;
+        double left = center[0] - VIEW_WIDTH / 2, right = center[0] + VIEW_WIDTH / 2;
+        double top = center[1] - VIEW_HEIGHT / 2, bottom = center[1] + VIEW_HEIGHT / 2;
+        int positionThreshold = ClientView.DEFAULT_POSITION_THRESHOLD, velocityThreshold = ClientView.DEFAULT_VELOCITY_THRESHOLD;
+        for (int i = 0; i < particles.size(); i++) {
+            double x = particles.getX(i), y = particles.getY(i);
+            if (x + size <= left || x >= right || y + size <= top || y >= bottom) {
+                continue;
+            }
+            int id = particles.getID(i);
+            int[] state = client.particles.get(id);
+            if (state == null) {
+                return mismatch(label, "particle " + id + " in view is missing");
+            }
+            double elapsed = time - client.baselineTimes.get(id);
+            double errorX = ClientView.quantize(x) - (state[0] + state[2] * elapsed);
+            double errorY = ClientView.quantize(y) - (state[1] + state[3] * elapsed);
+            int errorVx = ClientView.quantize(particles.getVelocityX(i)) - state[2];
+            int errorVy = ClientView.quantize(particles.getVelocityY(i)) - state[3];
+            if (Math.abs(errorX) > positionThreshold || Math.abs(errorY) > positionThreshold
+                    || Math.abs(errorVx) > velocityThreshold || Math.abs(errorVy) > velocityThreshold) {
+                return mismatch(label, String.format("particle %d is off by (%.1f, %.1f) px, (%.1f, %.1f) px/s", id,
+                        errorX / WireProtocol.STATE_SCALE, errorY / WireProtocol.STATE_SCALE,
+                        errorVx / WireProtocol.STATE_SCALE, errorVy / WireProtocol.STATE_SCALE));
+            }
+        }
+        for (int id : client.particles.keySet()) {
+            int i = particles.indexOf(id);
+            if (i < 0) {
+                return mismatch(label, "particle " + id + " was removed but the client still has it");
+            }
+            double x = particles.getX(i), y = particles.getY(i);
+            if (x + size <= left - VIEW_MARGIN || x >= right + VIEW_MARGIN || y + size <= top - VIEW_MARGIN || y >= bottom + VIEW_MARGIN) {
+                return mismatch(label, "particle " + id + " left the area but the client still has it");
+            }
+        }
+        return true;
+    }
+
+    private boolean mismatch(String label, String message) {
+        if (label != null) {
+            System.out.println("  " + label + ": " + message);
+        }
+        return false;
+    }
+
+    // A few thousand particles at random speeds, the view sweeps across them
+    private static SimulationEngine newEngine(long seed) {
+        SimulationEngine engine = new SimulationEngine(TickEngine.SEQUENTIAL);
+        Random random = new Random(seed);
+        int n = 3000;
+        double[] x = new double[n], y = new double[n], velocity = new double[n], angle = new double[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = random.nextDouble() * (engine.getWorldWidth() - engine.getParticleSize());
+            y[i] = random.nextDouble() * (engine.getWorldHeight() - engine.getParticleSize());
+            velocity[i] = 20 + random.nextDouble() * 300;
+            angle[i] = random.nextDouble() * 360;
+        }
+        engine.addParticles(x, y, velocity, angle);
+        // walls all over, so particles in view bounce and their changes go out as deltas
+        for (int k = 0; k < 40; k++) {
+            double wallX = random.nextDouble() * engine.getWorldWidth(), wallY = random.nextDouble() * engine.getWorldHeight();
+            double wallAngle = random.nextDouble() * Math.PI;
+            engine.addWall(new Wall(wallX, wallY, wallX + 80 * Math.cos(wallAngle), wallY + 80 * Math.sin(wallAngle)));
+        }
+        engine.applyCommands();
+        return engine;
+    }
+
+    private static ParticleGrid newGrid(SimulationEngine engine) {
+        return new ParticleGrid(engine.getWorldWidth(), engine.getWorldHeight(), 32);
+    }
+
+    private static void advance(SimulationEngine engine) {
+        for (int k = 0; k < STEPS_PER_SYNC; k++) {
+            engine.step(DELTA_TIME);
+        }
+    }
+
+    // Removes and adds a few particles, so views see particles vanish and appear mid-area
+    private static void churn(SimulationEngine engine, Random random) {
+        ParticleStore particles = engine.getParticles();
+        for (int k = 0; k < 5; k++) {
+            engine.removeParticle(particles.getID(random.nextInt(particles.size())));
+            engine.addParticle(random.nextDouble() * 1000 + 100, random.nextDouble() * 500 + 100,
+                    20 + random.nextDouble() * 300, random.nextDouble() * 360);
+        }
+    }
+
+    // Circles the world's centre, so particles keep entering and leaving the view
+    private static double[] viewCenter(SimulationEngine engine, int sync) {
+        double angle = sync * 0.05;
+        return new double[]{engine.getWorldWidth() / 2 + 300 * Math.cos(angle), engine.getWorldHeight() / 2 + 150 * Math.sin(angle)};
+    }
+}
@@ -0,0 +1,224 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+// Self-checks for BinaryProtocol's framing: every message type is encoded, fed to decode() the
+// way a socket hands it over (split at every byte, in random chunks, through a read buffer that
+// is compacted between reads) and must come out exactly as it went in. Frames that are too long,
+// too short or truncated must be rejected, unknown types skipped.
+public class ProtocolCheck extends SelfCheck {
+    private final BinaryProtocol protocol = new BinaryProtocol();
+
+    // Writes every decoded message as one line, so a stream can be compared with what was sent
+    private static final class Recorder implements WireProtocol.Listener {
+        final List<String> messages = new ArrayList<>();
+
+        @Override public void onHello(int version, int clientId, int x, int y) { add("hello", version, clientId, x, y); }
+        @Override public void onParticle(int id, float x, float y, float velocity, float angle) { add("particle", id, x, y, velocity, angle); }
+        @Override public void onSprite(int clientId, int x, int y) { add("sprite", clientId, x, y); }
+        @Override public void onClientGone(int clientId) { add("gone", clientId); }
+        @Override public void onParticleState(int id, int x, int y, int vx, int vy) { add("state", id, x, y, vx, vy); }
+        @Override public void onParticleDelta(int id, int dx, int dy, int dvx, int dvy) { add("delta", id, dx, dy, dvx, dvy); }
+        @Override public void onParticleRemoved(int id) { add("removed", id); }
+        @Override public void onSnapshot(int seq, double time) { add("snapshot", seq, time); }
+        @Override public void onReset() { add("reset"); }
+        @Override public void onMove(int x, int y) { add("move", x, y); }
+        @Override public void onAck(int seq) { add("ack", seq); }
+
+        private void add(String type, Object... fields) {
+            StringBuilder line = new StringBuilder(type);
+            for (Object field : fields) {
+                line.append(' ').append(field);
+            }
+            messages.add(line.toString());
+        }
+    }
+
+    @Override
+    protected void run() throws IOException {
+        List<String> expected = new ArrayList<>();
+        byte[] stream = sampleStream(expected);
+
+        // one read with everything, then every split into two reads
+        check(decodeInChunks(stream, new int[]{stream.length}, 64 * 1024).equals(expected), "whole stream decodes");
+        boolean splits = true;
+        for (int split = 1; split < stream.length; split++) {
+            splits &= decodeInChunks(stream, new int[]{split, stream.length - split}, 64 * 1024).equals(expected);
+        }
+        check(splits, "stream split into two reads at every byte decodes");
+
+        int[] ones = new int[stream.length];
+        Arrays.fill(ones, 1);
+        check(decodeInChunks(stream, ones, 64 * 1024).equals(expected), "stream read one byte at a time decodes");
+
+        // random chunks through a read buffer that only just fits the largest frame
+        Random random = new Random(11);
+        boolean chunks = true;
+        for (int run = 0; run < 200; run++) {
+            List<Integer> sizes = new ArrayList<>();
+            for (int left = stream.length; left > 0; ) {
+                int size = Math.min(left, 1 + random.nextInt(97));
+                sizes.add(size);
+                left -= size;
+            }
+            int[] chunkSizes = sizes.stream().mapToInt(Integer::intValue).toArray();
+            chunks &= decodeInChunks(stream, chunkSizes, WireProtocol.MAX_MESSAGE_SIZE).equals(expected);
+        }
+        check(chunks, "stream read in random chunks through a small buffer decodes");
+
+        checkVarints();
+        checkBadFrames();
+    }
+
+    // One of every message, including delta groups with negative, large and empty changes
+    private byte[] sampleStream(List<String> expected) {
+        ByteBuffer out = ByteBuffer.allocate(64 * 1024);
+        protocol.writeHello(out, 7, 100, -200);
+        expected.add("hello " + WireProtocol.VERSION + " 7 100 -200");
+        protocol.writeParticle(out, 42, 1.5, 2.25, 300, -45);
+        expected.add("particle 42 1.5 2.25 300.0 -45.0");
+        protocol.writeSprite(out, 3, 640, 360);
+        expected.add("sprite 3 640 360");
+        protocol.writeClientGone(out, 3);
+        expected.add("gone 3");
+        protocol.writeMove(out, -5, 9);
+        expected.add("move -5 9");
+        protocol.writeParticleState(out, 1, 16, 32, -48, Integer.MAX_VALUE);
+        expected.add("state 1 16 32 -48 " + Integer.MAX_VALUE);
+
+        int start = protocol.beginDeltas(out);
+        int[][] deltas = {{5, 1, -1, 0, 0}, {6, 0, 0, 0, 0}, {300, 0, 0, -7, 8}, {100_000, Integer.MIN_VALUE, Integer.MAX_VALUE, 64, -64}};
+        int previous = 0;
+        for (int[] delta : deltas) {
+            protocol.writeDelta(out, previous, delta[0], delta[1], delta[2], delta[3], delta[4]);
+            previous = delta[0];
+            expected.add("delta " + delta[0] + " " + delta[1] + " " + delta[2] + " " + delta[3] + " " + delta[4]);
+        }
+        protocol.endDeltas(out, start, deltas.length);
+
+        // a full group, the most one message holds
+        start = protocol.beginDeltas(out);
+        previous = 0;
+        for (int k = 0; k < WireProtocol.MAX_DELTAS_PER_MESSAGE; k++) {
+            int id = 1000 + 3 * k;
+            protocol.writeDelta(out, previous, id, k, -k, k * 1000, -k * 1000);
+            previous = id;
+            expected.add("delta " + id + " " + k + " " + -k + " " + k * 1000 + " " + -k * 1000);
+        }
+        protocol.endDeltas(out, start, WireProtocol.MAX_DELTAS_PER_MESSAGE);
+
+        protocol.writeParticleRemoved(out, 42);
+        expected.add("removed 42");
+        protocol.writeSnapshot(out, 12, 3.75);
+        expected.add("snapshot 12 3.75");
+        protocol.writeReset(out);
+        expected.add("reset");
+        protocol.writeAck(out, 12);
+        expected.add("ack 12");
+
+        // a message type from a newer peer, skipped by its length
+        int unknown = BinaryProtocol.begin(out, (byte) 99);
+        out.putLong(-1L);
+        BinaryProtocol.end(out, unknown);
+        protocol.writeSprite(out, 4, 1, 2);
+        expected.add("sprite 4 1 2");
+
+        out.flip();
+        byte[] stream = new byte[out.remaining()];
+        out.get(stream);
+        return stream;
+    }
+
+    // Hands the stream to decode() in reads of the given sizes, the way ClientServer does
+    private List<String> decodeInChunks(byte[] stream, int[] chunkSizes, int bufferSize) throws IOException {
+        Recorder recorder = new Recorder();
+        ByteBuffer readBuffer = ByteBuffer.allocate(bufferSize);
+        int offset = 0;
+        for (int size : chunkSizes) {
+            readBuffer.put(stream, offset, size);
+            offset += size;
+            readBuffer.flip();
+            protocol.decode(readBuffer, recorder);
+            readBuffer.compact();
+        }
+        if (readBuffer.position() != 0) {
+            recorder.messages.add("left over " + readBuffer.position() + " bytes");
+        }
+        return recorder.messages;
+    }
+
+    private void checkVarints() {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        int[] values = {0, 1, -1, 63, -64, 64, -65, 8191, -8192, 1 << 20, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        boolean roundTrip = true;
+        for (int value : values) {
+            buffer.clear();
+            BinaryProtocol.putVarint(buffer, value);
+            int length = buffer.position();
+            buffer.flip();
+            roundTrip &= BinaryProtocol.getVarint(buffer) == value && !buffer.hasRemaining();
+            // small steps of a slow particle take one byte each
+            if (value >= -64 && value <= 63) {
+                roundTrip &= length == 1;
+            }
+        }
+        check(roundTrip, "varints round-trip, small ones in one byte");
+    }
+
+    private void checkBadFrames() {
+        ByteBuffer frame = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN);
+        frame.putInt(BinaryProtocol.MAX_FRAME_LENGTH + 1).put(BinaryProtocol.SPRITE);
+        checkRejected(frame, 64 * 1024, "frame longer than MAX_FRAME_LENGTH");
+
+        frame.clear();
+        frame.putInt(WireProtocol.MAX_MESSAGE_SIZE * 2).put(BinaryProtocol.SPRITE);
+        checkRejected(frame, WireProtocol.MAX_MESSAGE_SIZE, "frame longer than the read buffer");
+
+        frame.clear();
+        frame.putInt(0);
+        checkRejected(frame, 64 * 1024, "frame of length 0");
+
+        frame.clear();
+        frame.putInt(-5);
+        checkRejected(frame, 64 * 1024, "frame of negative length");
+
+        // a SPRITE frame that claims 5 bytes must not read its fields from the next frame
+        frame.clear();
+        frame.putInt(5).put(BinaryProtocol.SPRITE).putInt(1);
+        protocol.writeAck(frame, 9);
+        checkRejected(frame, 64 * 1024, "frame shorter than its type needs");
+
+        // a delta group that claims more particles than it holds
+        frame.clear();
+        int start = protocol.beginDeltas(frame);
+        protocol.writeDelta(frame, 0, 1, 1, 1, 0, 0);
+        protocol.endDeltas(frame, start, 2);
+        checkRejected(frame, 64 * 1024, "delta group shorter than its count");
+
+        // a varint that never ends
+        frame.clear();
+        start = protocol.beginDeltas(frame);
+        for (int k = 0; k < 6; k++) {
+            frame.put((byte) 0xFF);
+        }
+        protocol.endDeltas(frame, start, 1);
+        checkRejected(frame, 64 * 1024, "varint longer than 5 bytes");
+    }
+
+    private void checkRejected(ByteBuffer frame, int bufferSize, String what) {
+        frame.flip();
+        ByteBuffer readBuffer = ByteBuffer.allocate(bufferSize);
+        readBuffer.put(frame);
+        readBuffer.flip();
+        try {
+            protocol.decode(readBuffer, new Recorder());
+            check(false, what + " is rejected");
+        } catch (IOException e) {
+            check(true, what + " is rejected");
+        }
+    }
+}
@@ -0,0 +1,151 @@
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Self-checks for ReplicatedWorld's triple-buffered frames: the EDT must never be handed a frame
+// the receive thread is still writing, must always see the newest complete one and never an
+// older one after it, and once the arrays have grown to the scene the same three frames and
+// their arrays are reused, with nothing allocated per frame.
+public class ReplicatedWorldCheck extends SelfCheck {
+    private static final int PARTICLES = 5000;
+    private static final int SPRITES = 8;
+
+    @Override
+    protected void run() throws InterruptedException {
+        checkHandoff();
+        checkReuse();
+        checkConcurrent();
+    }
+
+    // publish() and acquireFrame() from one thread, in the orders the two threads can call them
+    private void checkHandoff() {
+        ReplicatedWorld world = new ReplicatedWorld();
+        ReplicatedWorld.Frame empty = world.acquireFrame();
+        check(world.acquireFrame() == empty, "without a publish the EDT keeps its frame");
+
+        fill(world, 1);
+        world.publish();
+        ReplicatedWorld.Frame first = world.acquireFrame();
+        check(first != empty && generation(first) == 1, "a published frame is handed to the EDT");
+        check(world.acquireFrame() == first, "a frame is only handed over once");
+
+        world.publish();
+        check(world.acquireFrame() == first, "publish() without a change does not hand over a frame");
+
+        // the EDT misses two publishes and gets the newest
+        fill(world, 2);
+        world.publish();
+        fill(world, 3);
+        world.publish();
+        ReplicatedWorld.Frame third = world.acquireFrame();
+        check(generation(third) == 3, "the EDT skips to the newest published frame");
+        fill(world, 4);
+        world.publish();
+        check(isWhole(third, 3), "the frame the EDT holds is not written by the next publish");
+        check(generation(world.acquireFrame()) == 4, "the next acquire hands over that publish");
+    }
+
+    // In steady state every publish and acquire cycles through the same three frames and arrays
+    private void checkReuse() {
+        ReplicatedWorld world = new ReplicatedWorld();
+        // grow every frame's arrays to the scene first
+        for (int k = 1; k <= 6; k++) {
+            fill(world, k);
+            world.publish();
+            world.acquireFrame();
+        }
+        Map<ReplicatedWorld.Frame, int[]> arrays = new IdentityHashMap<>();
+        boolean sameArrays = true;
+        for (int k = 7; k < 1000; k++) {
+            fill(world, k);
+            world.publish();
+            ReplicatedWorld.Frame frame = world.acquireFrame();
+            int[] x = arrays.putIfAbsent(frame, frame.x);
+            sameArrays &= x == null || x == frame.x;
+        }
+        check(arrays.size() == 3, "three frames are cycled, not " + arrays.size());
+        check(sameArrays, "a frame's arrays are not reallocated once grown to the scene");
+    }
+
+    // The receive thread publishes as fast as it can while the EDT draws: every frame the EDT
+    // holds must be one generation throughout, and not change under it until its next acquire
+    private void checkConcurrent() throws InterruptedException {
+        ReplicatedWorld world = new ReplicatedWorld();
+        int generations = 3000;
+        AtomicBoolean done = new AtomicBoolean();
+        Thread receiver = new Thread(() -> {
+            for (int k = 1; k <= generations; k++) {
+                fill(world, k);
+                world.publish();
+            }
+            done.set(true);
+        }, "receive");
+        receiver.start();
+
+        int frames = 0, torn = 0, backwards = 0, last = 0;
+        Set<ReplicatedWorld.Frame> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        boolean finished = false;
+        while (!finished) {
+            // everything published before done was set is in the frame acquired after it
+            finished = done.get();
+            ReplicatedWorld.Frame frame = world.acquireFrame();
+            seen.add(frame);
+            if (frame.getParticleCount() == 0) {
+                continue;
+            }
+            frames++;
+            int generation = generation(frame);
+            // read the whole frame twice, the way painting reads it: any write in between shows
+            boolean consistent = isWhole(frame, generation);
+            Thread.yield();
+            consistent &= isWhole(frame, generation);
+            if (!consistent) {
+                torn++;
+            }
+            if (generation < last) {
+                backwards++;
+            }
+            last = Math.max(last, generation);
+        }
+        receiver.join();
+        check(frames > 1, "the EDT drew frames while they were published");
+        check(torn == 0, torn + " of " + frames + " frames changed while the EDT held them");
+        check(backwards == 0, backwards + " frames were older than one drawn before");
+        check(last == generations, "the last published frame reaches the EDT");
+        check(seen.size() <= 3, seen.size() + " frames were handed out, not at most three");
+    }
+
+    // Sets every particle and sprite to the generation, so a frame mixing two is easy to spot
+    private static void fill(ReplicatedWorld world, int generation) {
+        long now = System.nanoTime();
+        for (int id = 1; id <= PARTICLES; id++) {
+            world.setParticle(id, generation, generation, generation, generation, now);
+        }
+        for (int id = 1; id <= SPRITES; id++) {
+            world.setSprite(id, generation, generation);
+        }
+    }
+
+    private static int generation(ReplicatedWorld.Frame frame) {
+        return frame.x[0];
+    }
+
+    private static boolean isWhole(ReplicatedWorld.Frame frame, int generation) {
+        if (frame.getParticleCount() != PARTICLES || frame.getSpriteCount() != SPRITES) {
+            return false;
+        }
+        for (int i = 0; i < PARTICLES; i++) {
+            if (frame.x[i] != generation || frame.y[i] != generation || frame.vx[i] != generation || frame.vy[i] != generation) {
+                return false;
+            }
+        }
+        for (int i = 0; i < SPRITES; i++) {
+            if (frame.getSpriteX(i) != generation || frame.getSpriteY(i) != generation) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
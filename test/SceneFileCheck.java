@@ -0,0 +1,183 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+// Self-checks for SceneFile: scenes written and read back, small ones through a plain channel
+// and large ones through a memory map, must come back exactly, and loading one into an engine
+// must give the same particles. Files with a bad magic, a newer version, a wrong size or
+// inconsistent contents must be rejected with an IOException; a longer header from a newer
+// writer of the same version must be skipped.
+public class SceneFileCheck extends SelfCheck {
+    private Path file;
+
+    @Override
+    protected void run() throws IOException {
+        file = Files.createTempFile("scene", ".bin");
+        try {
+            checkRoundTrips();
+            checkLoadIntoEngine();
+            checkRejected();
+            checkLongerHeader();
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private void checkRoundTrips() throws IOException {
+        // empty, small, odd-sized (padding after the ids) and memory-mapped
+        for (int n : new int[]{0, 1, 333, 100_000}) {
+            SceneFile.Scene scene = randomScene(n, 12, 3, n);
+            long size = SceneFile.write(scene, file);
+            check(size == Files.size(file), n + " particles: write reports the file's size");
+            check(n < 100_000 || size >= SceneFile.MAP_THRESHOLD, n + " particles: large enough to be memory-mapped");
+            String difference = difference(scene, SceneFile.read(file));
+            check(difference == null, n + " particles: read gives back what was written" + (difference == null ? "" : ", " + difference));
+        }
+    }
+
+    // SceneFile.load() replaces the engine's particles and walls with the next step
+    private void checkLoadIntoEngine() throws IOException {
+        SceneFile.Scene scene = randomScene(5000, 8, 0, 7);
+        SceneFile.write(scene, file);
+        SimulationEngine engine = new SimulationEngine(TickEngine.SEQUENTIAL);
+        engine.addParticle(1, 1, 1, 1);
+        engine.applyCommands();
+        SceneFile.load(file, engine, null);
+        engine.applyCommands();
+        SceneFile.Scene loaded = SceneFile.capture(engine, null);
+        loaded.tick = scene.tick;
+        loaded.time = scene.time;
+        String difference = difference(scene, loaded);
+        check(difference == null, "a loaded engine holds the scene" + (difference == null ? "" : ", " + difference));
+        check(engine.addParticle(0, 0, 0, 0) >= scene.nextParticleId, "ids handed out after a load are not in the scene");
+        engine.shutdown();
+    }
+
+    private void checkRejected() throws IOException {
+        SceneFile.write(randomScene(50, 2, 1, 9), file);
+        byte[] good = Files.readAllBytes(file);
+
+        checkRejected(Arrays.copyOf(good, 10), "file shorter than the header");
+        checkRejected(withInt(good, 0, 0x12345678), "bad magic");
+        checkRejected(withInt(good, 4, SceneFile.VERSION + 1), "newer version");
+        checkRejected(Arrays.copyOf(good, good.length - 4), "truncated file");
+        checkRejected(Arrays.copyOf(good, good.length + 4), "file with trailing bytes");
+        checkRejected(withInt(good, 8, SceneFile.HEADER_SIZE - 8), "header size below the minimum");
+        // header: 4 ints, 5 doubles, 1 long, then next id, particles, walls, sprites
+        int counts = 16 + 5 * 8 + 8;
+        checkRejected(withInt(good, counts + 4, -1), "negative particle count");
+        checkRejected(withInt(good, counts + 4, Integer.MAX_VALUE), "particle count larger than the file");
+        checkRejected(withInt(good, counts, 3), "next particle id already in use");
+        checkRejected(withInt(good, SceneFile.HEADER_SIZE + 4, readInt(good, SceneFile.HEADER_SIZE)), "duplicate particle id");
+        checkRejected(withInt(good, SceneFile.HEADER_SIZE, -7), "negative particle id");
+    }
+
+    // A writer of the same version may put more into the header, readers skip it by its size
+    private void checkLongerHeader() throws IOException {
+        SceneFile.Scene scene = randomScene(40, 3, 2, 11);
+        SceneFile.write(scene, file);
+        byte[] good = Files.readAllBytes(file);
+        int extra = 8;
+        byte[] longer = new byte[good.length + extra];
+        System.arraycopy(good, 0, longer, 0, SceneFile.HEADER_SIZE);
+        System.arraycopy(good, SceneFile.HEADER_SIZE, longer, SceneFile.HEADER_SIZE + extra, good.length - SceneFile.HEADER_SIZE);
+        longer = withInt(longer, 8, SceneFile.HEADER_SIZE + extra);
+        Files.write(file, longer);
+        String difference = difference(scene, SceneFile.read(file));
+        check(difference == null, "a longer header is skipped" + (difference == null ? "" : ", " + difference));
+    }
+
+    private void checkRejected(byte[] contents, String what) throws IOException {
+        Files.write(file, contents);
+        try {
+            SceneFile.read(file);
+            check(false, what + " is rejected");
+        } catch (IOException e) {
+            check(true, what + " is rejected");
+        }
+    }
+
+    private static SceneFile.Scene randomScene(int particles, int walls, int sprites, long seed) {
+        Random random = new Random(seed);
+        SceneFile.Scene scene = new SceneFile.Scene();
+        scene.worldWidth = SimulationEngine.WORLD_WIDTH;
+        scene.worldHeight = SimulationEngine.WORLD_HEIGHT;
+        scene.particleSize = SimulationEngine.DEFAULT_PARTICLE_SIZE;
+        scene.tick = random.nextInt(1_000_000);
+        scene.time = random.nextDouble() * 1000;
+        // ids with gaps, as after particles were removed
+        int id = 1;
+        for (int i = 0; i < particles; i++) {
+            id += 1 + random.nextInt(3);
+            int slot = scene.particles.add(id, random.nextDouble() * scene.worldWidth, random.nextDouble() * scene.worldHeight,
+                    random.nextDouble() * 400, random.nextDouble() * 360);
+            scene.particles.setVelocityVector(slot, random.nextGaussian() * 200, random.nextGaussian() * 200);
+        }
+        scene.nextParticleId = id + 1 + random.nextInt(10);
+        for (int k = 0; k < walls; k++) {
+            scene.walls.add(new Wall(random.nextDouble() * 1280, random.nextDouble() * 720, random.nextDouble() * 1280, random.nextDouble() * 720));
+        }
+        scene.sprites = new int[sprites * 3];
+        for (int k = 0; k < sprites; k++) {
+            scene.sprites[k * 3] = k + 1;
+            scene.sprites[k * 3 + 1] = random.nextInt(1280);
+            scene.sprites[k * 3 + 2] = random.nextInt(720);
+        }
+        return scene;
+    }
+
+    // The first field two scenes disagree on, null if they are the same to the bit
+    private static String difference(SceneFile.Scene expected, SceneFile.Scene actual) {
+        if (expected.worldWidth != actual.worldWidth || expected.worldHeight != actual.worldHeight
+                || expected.particleSize != actual.particleSize) {
+            return "world differs";
+        }
+        if (expected.tick != actual.tick || expected.time != actual.time) {
+            return "tick or time differs";
+        }
+        if (expected.nextParticleId != actual.nextParticleId) {
+            return "next particle id " + actual.nextParticleId + " instead of " + expected.nextParticleId;
+        }
+        ParticleStore a = expected.particles, b = actual.particles;
+        if (a.size() != b.size()) {
+            return b.size() + " particles instead of " + a.size();
+        }
+        for (int i = 0; i < a.size(); i++) {
+            int j = b.indexOf(a.getID(i));
+            if (j < 0) {
+                return "particle " + a.getID(i) + " is missing";
+            }
+            if (a.getX(i) != b.getX(j) || a.getY(i) != b.getY(j) || a.getVelocityX(i) != b.getVelocityX(j)
+                    || a.getVelocityY(i) != b.getVelocityY(j)) {
+                return "particle " + a.getID(i) + " differs";
+            }
+        }
+        if (expected.walls.size() != actual.walls.size()) {
+            return actual.walls.size() + " walls instead of " + expected.walls.size();
+        }
+        for (int k = 0; k < expected.walls.size(); k++) {
+            Wall w = expected.walls.get(k), v = actual.walls.get(k);
+            if (w.getX1() != v.getX1() || w.getY1() != v.getY1() || w.getX2() != v.getX2() || w.getY2() != v.getY2()) {
+                return "wall " + k + " differs";
+            }
+        }
+        if (!Arrays.equals(expected.sprites, actual.sprites)) {
+            return "sprites differ";
+        }
+        return null;
+    }
+
+    private static byte[] withInt(byte[] contents, int offset, int value) {
+        byte[] copy = contents.clone();
+        ByteBuffer.wrap(copy).order(ByteOrder.LITTLE_ENDIAN).putInt(offset, value);
+        return copy;
+    }
+
+    private static int readInt(byte[] contents, int offset) {
+        return ByteBuffer.wrap(contents).order(ByteOrder.LITTLE_ENDIAN).getInt(offset);
+    }
+}
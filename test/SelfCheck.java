@@ -0,0 +1,54 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// The self-checking harnesses under test/, which stay out of the application jar. Each one
+// subclasses SelfCheck, makes its checks in run() and is listed in all(). gradle test runs
+// every one, or run them by hand:
+//
+//   java -cp build/classes/java/main:build/classes/java/test SelfCheck [ProtocolCheck ...]
+//
+// Every failed check is printed. If there was one, main throws, so the JVM exits with 1.
+public abstract class SelfCheck {
+    private int checks;
+    private int failures;
+
+    static SelfCheck[] all() {
+        return new SelfCheck[]{new ProtocolCheck(), new DeltaSyncCheck(), new SceneFileCheck(), new ReplicatedWorldCheck()};
+    }
+
+    protected abstract void run() throws Exception;
+
+    protected void check(boolean ok, String what) {
+        checks++;
+        if (!ok) {
+            failures++;
+            System.out.println("FAILED: " + what);
+        }
+    }
+
+    public static void main(String[] args) {
+        List<String> selected = new ArrayList<>();
+        for (String arg : args) {
+            selected.add(arg);
+        }
+        int failed = 0;
+        for (SelfCheck check : all()) {
+            String name = check.getClass().getSimpleName();
+            if (!selected.isEmpty() && !selected.contains(name)) {
+                continue;
+            }
+            try {
+                check.run();
+            } catch (Exception e) {
+                // the checks after it did not run, which counts as a failure
+                e.printStackTrace();
+                check.failures++;
+            }
+            System.out.println(name + ": " + check.checks + " checks, " + check.failures + " failed");
+            failed += check.failures;
+        }
+        if (failed > 0) {
+            throw new AssertionError(failed + " self-checks failed");
+        }
+    }
+}